@@ -32,6 +32,7 @@ import com.google.android.gms.fitness.data.DataSource;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.Field;
 import com.google.android.gms.fitness.data.Session;
+import com.google.android.gms.fitness.data.Value;
 import com.google.android.gms.fitness.request.DataDeleteRequest;
 import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.request.SessionInsertRequest;
@@ -40,6 +41,9 @@ import com.google.android.gms.fitness.result.DataReadResponse;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.Tasks;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -51,6 +55,7 @@ public class ActivityHistory {
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
     private static final String TAG = "RNGoogleFit";
+    private static final String CACHE_KEY_MOVE_MINUTES = "move_minutes";
 
     private static final String HIGH_LONGITUDE = "high_longitude";
     private static final String LOW_LONGITUDE = "low_longitude";
@@ -74,13 +79,38 @@ public class ActivityHistory {
             DataType.TYPE_CALORIES_EXPENDED
     };
 
+    // metrics of getSummary: name in the result, input type, aggregate type and the summed field
+    private static final String[] SUMMARY_METRICS = {"steps", "distance", "calories", "moveMinutes", "heartPoints"};
+    private static final DataType[] SUMMARY_INPUT_TYPES = {
+            DataType.TYPE_STEP_COUNT_DELTA,
+            DataType.TYPE_DISTANCE_DELTA,
+            DataType.TYPE_CALORIES_EXPENDED,
+            DataType.TYPE_MOVE_MINUTES,
+            DataType.TYPE_HEART_POINTS
+    };
+    private static final DataType[] SUMMARY_AGGREGATE_TYPES = {
+            DataType.AGGREGATE_STEP_COUNT_DELTA,
+            DataType.AGGREGATE_DISTANCE_DELTA,
+            DataType.AGGREGATE_CALORIES_EXPENDED,
+            DataType.AGGREGATE_MOVE_MINUTES,
+            DataType.AGGREGATE_HEART_POINTS
+    };
+    private static final Field[] SUMMARY_FIELDS = {
+            Field.FIELD_STEPS,
+            Field.FIELD_DISTANCE,
+            Field.FIELD_CALORIES,
+            Field.FIELD_DURATION,
+            Field.FIELD_INTENSITY
+    };
+
     public ActivityHistory(ReactContext reactContext, GoogleFitManager googleFitManager){
         this.mReactContext = reactContext;
         this.googleFitManager = googleFitManager;
     }
 
-    public ReadableArray getActivitySamples(long startTime, long endTime, int bucketInterval, String bucketUnit) {
+    public ReadableArray getActivitySamples(long startTime, long endTime, int bucketInterval, String bucketUnit, QueryContext query) {
         WritableArray results = Arguments.createArray();
+        boolean traced = FitTrace.begin("activitySamples:request");
         DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder();
 
         for (DataType dt : WORKOUT_FIELD_DATATYPE) {
@@ -93,17 +123,23 @@ public class ActivityHistory {
                 .bucketByActivitySegment(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
                 .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
                 .build();
+        FitTrace.end(traced);
 
         FitnessOptions fitnessOptions = createWorkoutFitnessOptions(FitnessOptions.ACCESS_READ);
         GoogleSignInAccount googleSignInAccount =
                 GoogleSignIn.getAccountForExtension(this.mReactContext, fitnessOptions);
 
         try {
-            Task<DataReadResponse> task = Fitness.getHistoryClient(this.mReactContext, googleSignInAccount)
-                    .readData(readRequest);
+            Task<DataReadResponse> task = googleFitManager.getReadCoalescer().join(
+                    ReadCoalescer.key("activitySamples", startTime, endTime, bucketInterval, bucketUnit),
+                    () -> Fitness.getHistoryClient(mReactContext, googleSignInAccount).readData(readRequest));
 
-            DataReadResponse response = Tasks.await(task, 30, TimeUnit.SECONDS);
+            long fitStart = PerfStats.begin();
+            DataReadResponse response = Tasks.await(task, query.waitMillis(30, TimeUnit.SECONDS), TimeUnit.MILLISECONDS);
+            PerfStats.end(PerfStats.Stage.FIT, fitStart);
 
+            // the buckets are turned into result maps in the same pass
+            traced = FitTrace.begin("activitySamples:process");
             if (response.getStatus().isSuccess()) {
                 for (Bucket bucket : response.getBuckets()) {
                     String activityName = bucket.getActivity();
@@ -170,6 +206,7 @@ public class ActivityHistory {
             } else {
                 Log.w(TAG, "There was an error reading data from Google Fit" + response.getStatus().toString());
             }
+            FitTrace.end(traced);
 
         } catch (Exception e) {
             Log.w(TAG, "Exception: " + e);
@@ -178,49 +215,133 @@ public class ActivityHistory {
         return results;
     }
 
-    public ReadableArray getMoveMinutes(long startTime, long endTime, int bucketInterval, String bucketUnit) {
+    public Object getMoveMinutes(long startTime, long endTime, int bucketInterval, String bucketUnit, QueryContext query) {
         DataType[] fitnessDataTypes = {DataType.TYPE_MOVE_MINUTES, DataType.AGGREGATE_MOVE_MINUTES};
-        DataReadRequest readReq = HelperUtil.createDataReadRequest(
-                startTime,
-                endTime,
-                bucketInterval,
-                bucketUnit,
-                fitnessDataTypes);
         Integer[] accessOpts = {FitnessOptions.ACCESS_READ};
         GoogleSignInOptionsExtension fitnessOptions = HelperUtil.createSignInFitnessOptions(DataType.TYPE_MOVE_MINUTES, accessOpts);
 
         GoogleSignInAccount googleSignInAccount =
                 GoogleSignIn.getAccountForExtension(this.mReactContext, fitnessOptions);
 
-        WritableArray moveMinutes = Arguments.createArray();
+        try {
+            // closed buckets come from the cache, only the gaps between them go to Google Fit
+            long bucketMillis = HelperUtil.processBucketUnit(bucketUnit).toMillis(bucketInterval);
+            ArrayList<Object> moveMinutes = AggregateCache.getInstance(mReactContext).readThrough(
+                    CACHE_KEY_MOVE_MINUTES, startTime, endTime, bucketMillis, (gapStart, gapEnd) -> {
+                        boolean traced = FitTrace.begin("moveMinutes:request");
+                        DataReadRequest readReq = HelperUtil.createDataReadRequest(
+                                gapStart,
+                                gapEnd,
+                                bucketInterval,
+                                bucketUnit,
+                                fitnessDataTypes);
+                        FitTrace.end(traced);
+                        Task<DataReadResponse> task = googleFitManager.getReadCoalescer().join(
+                                ReadCoalescer.key("moveMinutes", gapStart, gapEnd, bucketInterval, bucketUnit),
+                                () -> Fitness.getHistoryClient(mReactContext, googleSignInAccount).readData(readReq));
+
+                        DataReadResponse response;
+                        try {
+                            response = Tasks.await(task, query.waitMillis(30, TimeUnit.SECONDS), TimeUnit.MILLISECONDS);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                        if (!response.getStatus().isSuccess()) {
+                            throw new IllegalStateException("There was an error reading data from Google Fit" + response.getStatus().toString());
+                        }
+                        traced = FitTrace.begin("moveMinutes:process");
+                        List<AggregateCache.Entry> entries = AggregateCache.entries(response.getBuckets(),
+                                Collections.<DataSet>emptyList(), gapStart, gapEnd,
+                                (dataSet, out) -> HelperUtil.processDataSet(mReactContext, TAG, dataSet, out));
+                        FitTrace.end(traced);
+                        return entries;
+                    });
+            boolean traced = FitTrace.begin("moveMinutes:build");
+            Object result = query.format(moveMinutes, "duration");
+            FitTrace.end(traced);
+            return result;
+        } catch (Exception e) {
+            Log.w(TAG, "Exception: " + e);
+        }
+        return query.format(Collections.emptyList(), "duration");
+    }
+
+    /**
+     * Aggregates several metrics over the same buckets with a single read, instead of one read per metric.
+     * Each bucket holds its start and end plus one total per requested metric, 0 when there is no data.
+     */
+    public ReadableArray getSummary(ReadableArray types, long startTime, long endTime, int bucketInterval, String bucketUnit,
+                                    QueryContext query) {
+        List<Integer> metrics = new ArrayList<>();
+        for (int i = 0; i < types.size(); i++) {
+            int metric = Arrays.asList(SUMMARY_METRICS).indexOf(types.getString(i));
+            if (metric < 0) {
+                throw new IllegalArgumentException("Unsupported summary type: " + types.getString(i));
+            }
+            if (!metrics.contains(metric)) {
+                metrics.add(metric);
+            }
+        }
+        Collections.sort(metrics);
+
+        boolean traced = FitTrace.begin("summary:request");
+        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder();
+        FitnessOptions.Builder fitnessOptionsBuilder = FitnessOptions.builder();
+        StringBuilder metricKey = new StringBuilder();
+        for (int metric : metrics) {
+            readRequestBuilder.aggregate(SUMMARY_INPUT_TYPES[metric]);
+            fitnessOptionsBuilder.addDataType(SUMMARY_INPUT_TYPES[metric], FitnessOptions.ACCESS_READ);
+            metricKey.append(SUMMARY_METRICS[metric]).append(',');
+        }
+        DataReadRequest readRequest = readRequestBuilder
+                .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
+                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
+                .build();
+        FitTrace.end(traced);
+
+        GoogleSignInAccount googleSignInAccount =
+                GoogleSignIn.getAccountForExtension(this.mReactContext, fitnessOptionsBuilder.build());
 
+        WritableArray results = Arguments.createArray();
         try {
-            Task<DataReadResponse> task = Fitness.getHistoryClient(this.mReactContext, googleSignInAccount)
-                    .readData(readReq);
-            DataReadResponse response = Tasks.await(task, 30, TimeUnit.SECONDS);
-            if (response.getStatus().isSuccess()) {
-                for (Bucket bucket : response.getBuckets()) {
-                    for (DataSet dataSet : bucket.getDataSets()) {
-                        HelperUtil.processDataSet(this.mReactContext, TAG, dataSet, moveMinutes);
-                    }
-                }
-                return moveMinutes;
-            } else {
+            Task<DataReadResponse> task = googleFitManager.getReadCoalescer().join(
+                    ReadCoalescer.key("summary", metricKey, startTime, endTime, bucketInterval, bucketUnit),
+                    () -> Fitness.getHistoryClient(mReactContext, googleSignInAccount).readData(readRequest));
+
+            long fitStart = PerfStats.begin();
+            DataReadResponse response = Tasks.await(task, query.waitMillis(30, TimeUnit.SECONDS), TimeUnit.MILLISECONDS);
+            PerfStats.end(PerfStats.Stage.FIT, fitStart);
+            if (!response.getStatus().isSuccess()) {
                 Log.w(TAG, "There was an error reading data from Google Fit" + response.getStatus().toString());
+                return results;
             }
+
+            traced = FitTrace.begin("summary:process");
+            for (Bucket bucket : response.getBuckets()) {
+                WritableMap map = Arguments.createMap();
+                map.putDouble("startDate", bucket.getStartTime(TimeUnit.MILLISECONDS));
+                map.putDouble("endDate", bucket.getEndTime(TimeUnit.MILLISECONDS));
+                for (int metric : metrics) {
+                    map.putDouble(SUMMARY_METRICS[metric], sumField(
+                            bucket.getDataSet(SUMMARY_AGGREGATE_TYPES[metric]), SUMMARY_FIELDS[metric]));
+                }
+                results.pushMap(map);
+            }
+            FitTrace.end(traced);
         } catch (Exception e) {
             Log.w(TAG, "Exception: " + e);
         }
-        return moveMinutes;
+        return results;
     }
 
-    public void getWorkoutSession(long startTime, long endTime, ReadableMap options, final Promise promise) {
+    public void getWorkoutSession(long startTime, long endTime, ReadableMap options, final QueryContext query, final Promise promise) {
         WritableArray results = Arguments.createArray();
         String readSessionFromAllAppsKey = "readSessionFromAllApps";
         boolean readSessionFromAllApps = options.hasKey(readSessionFromAllAppsKey)
                 ? options.getBoolean(readSessionFromAllAppsKey)
                 : false;
 
+        boolean traced = FitTrace.begin("workoutSessions:request");
         SessionReadRequest.Builder readRequestBuilder = new SessionReadRequest.Builder()
                 .setTimeInterval(startTime, endTime, TimeUnit.MILLISECONDS)
                 .includeActivitySessions();
@@ -233,11 +354,20 @@ public class ActivityHistory {
         readRequestBuilder.read(DataType.TYPE_DISTANCE_DELTA);
 
         SessionReadRequest readRequest = readRequestBuilder.build();
+        FitTrace.end(traced);
         FitnessOptions fitnessOptions = createWorkoutFitnessOptions(FitnessOptions.ACCESS_READ);
 
-        Fitness.getSessionsClient(this.mReactContext, GoogleSignIn.getAccountForExtension(this.mReactContext, fitnessOptions))
-                .readSession(readRequest)
-                .addOnSuccessListener(response -> {
+        googleFitManager.getReadCoalescer().join(
+                ReadCoalescer.key("workoutSessions", startTime, endTime, readSessionFromAllApps),
+                () -> Fitness.getSessionsClient(mReactContext, GoogleSignIn.getAccountForExtension(mReactContext, fitnessOptions))
+                        .readSession(readRequest))
+                .addOnSuccessListener(googleFitManager.getQueryExecutor().callbacks(), response -> {
+                    googleFitManager.getQueryExecutor().finish(query);
+                    // the promise of a cancelled read was already rejected
+                    if (query.isCancelled()) {
+                        return;
+                    }
+                    boolean processed = FitTrace.begin("workoutSessions:process");
                     List<Session> sessions = response.getSessions();
                     for (Session session : sessions) {
                         WritableMap map = Arguments.createMap();
@@ -272,9 +402,13 @@ public class ActivityHistory {
                         map.putString("identifier", session.getIdentifier());
                         results.pushMap(map);
                     }
-                    promise.resolve(results);
+                    FitTrace.end(processed);
+                    query.resolve(promise, results);
                 })
-                .addOnFailureListener(promise::reject);
+                .addOnFailureListener(googleFitManager.getQueryExecutor().callbacks(), e -> {
+                    googleFitManager.getQueryExecutor().finish(query);
+                    query.reject(promise, e);
+                });
     }
 
     public void saveWorkout(long startTime, long endTime, ReadableMap options, final Promise promise) {
@@ -395,8 +529,8 @@ public class ActivityHistory {
 
         Fitness.getSessionsClient(this.mReactContext, account)
                 .insertSession(insertRequest)
-                .addOnSuccessListener(unused -> promise.resolve(true))
-                .addOnFailureListener(e -> promise.reject(e));
+                .addOnSuccessListener(googleFitManager.getQueryExecutor().callbacks(), unused -> promise.resolve(true))
+                .addOnFailureListener(googleFitManager.getQueryExecutor().callbacks(), e -> promise.reject(e));
     }
 
     public void deleteAllWorkout(long startTime, long endTime, ReadableMap options,  final Promise promise) {
@@ -419,8 +553,8 @@ public class ActivityHistory {
 
         Fitness.getHistoryClient(this.mReactContext, GoogleSignIn.getAccountForExtension(this.mReactContext, fitnessOptions))
                 .deleteData(request)
-                .addOnSuccessListener(unused -> promise.resolve(true))
-                .addOnFailureListener(e -> promise.reject(e));
+                .addOnSuccessListener(googleFitManager.getQueryExecutor().callbacks(), unused -> promise.resolve(true))
+                .addOnFailureListener(googleFitManager.getQueryExecutor().callbacks(), e -> promise.reject(e));
     }
 
     public void deleteAllSleep(long startTime, long endTime, ReadableMap options,  final Promise promise) {
@@ -436,11 +570,25 @@ public class ActivityHistory {
 
         Fitness.getHistoryClient(this.mReactContext, GoogleSignIn.getAccountForExtension(this.mReactContext, fitnessOptions))
                 .deleteData(request)
-                .addOnSuccessListener(unused -> promise.resolve(true))
-                .addOnFailureListener(e -> promise.reject(e));
+                .addOnSuccessListener(googleFitManager.getQueryExecutor().callbacks(), unused -> promise.resolve(true))
+                .addOnFailureListener(googleFitManager.getQueryExecutor().callbacks(), e -> promise.reject(e));
     }
 
     //private helper functions
+    private double sumField(DataSet dataSet, Field field) {
+        double total = 0;
+        if (dataSet == null) {
+            return total;
+        }
+        for (DataPoint dataPoint : dataSet.getDataPoints()) {
+            Value value = dataPoint.getValue(field);
+            if (value.isSet()) {
+                total += field.getFormat() == Field.FORMAT_FLOAT ? value.asFloat() : value.asInt();
+            }
+        }
+        return total;
+    }
+
     private FitnessOptions createWorkoutFitnessOptions(int fitnessOptionsAccess) {
         FitnessOptions.Builder fitnessOptionsBuilder = FitnessOptions.builder();
         for (DataType dataType : WORKOUT_FIELD_DATATYPE) {
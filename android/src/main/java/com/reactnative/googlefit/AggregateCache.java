@@ -0,0 +1,397 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.google.android.gms.fitness.data.Bucket;
+import com.google.android.gms.fitness.data.DataSet;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-device cache of bucketed aggregates (steps, distance, calories, nutrition, heart rate summaries and
+ * move minutes).
+ *
+ * A bucket is only written once it is closed, i.e. it ends before the start of the current local day.
+ * Such buckets are treated as immutable, so a range query only has to go to Google Fit for the buckets
+ * that are missing from the cache or still open (today). {@link #plan} splits a range into cached runs
+ * and gaps, and {@link #readThrough} reads just the gaps and stitches everything back in order.
+ *
+ * Buckets are laid out the same way Fit's {@code bucketByTime} lays them out: starting at the range
+ * start, one bucket every {@code bucketMillis}, the last one clipped to the range end.
+ *
+ * The buckets belong to the signed in account, so the cache is cleared on sign out. Reads that were
+ * planned before a clear pass the {@link #generation} they started with to {@link #store}, which then skips them.
+ */
+final class AggregateCache extends SQLiteOpenHelper {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String DATABASE_NAME = "rngooglefit_aggregates.db";
+    // 2: basal adjusted calories are no longer cached, their rows are dropped with the rest
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE = "aggregates";
+    private static final String COLUMN_KEY = "cache_key";
+    private static final String COLUMN_BUCKET_START = "bucket_start";
+    private static final String COLUMN_BUCKET_END = "bucket_end";
+    private static final String COLUMN_PAYLOAD = "payload";
+
+    // upper bound of Fit reads for one range, beyond that the gaps are read as one
+    static final int MAX_GAP_READS = 4;
+
+    private static AggregateCache instance;
+
+    private volatile boolean enabled = true;
+    // bumped by clear(), results of reads from before are not stored
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * Items of one cached or freshly read bucket, in the shape they are returned to JS.
+     */
+    static final class Entry {
+        final long bucketStart;
+        final long bucketEnd;
+        final ArrayList<Object> items;
+        final boolean cacheable;
+
+        Entry(long bucketStart, long bucketEnd, ArrayList<Object> items, boolean cacheable) {
+            this.bucketStart = bucketStart;
+            this.bucketEnd = bucketEnd;
+            this.items = items;
+            this.cacheable = cacheable;
+        }
+    }
+
+    /**
+     * Part of a planned range: either a run of cached buckets or a gap that has to be read from Google Fit.
+     */
+    static final class Segment {
+        final long start;
+        final long end;
+        final ArrayList<Object> items;
+
+        Segment(long start, long end, ArrayList<Object> items) {
+            this.start = start;
+            this.end = end;
+            this.items = items;
+        }
+
+        boolean isGap() {
+            return items == null;
+        }
+    }
+
+    /**
+     * Reads one gap from Google Fit, bucketed the same way as the cached buckets around it.
+     */
+    interface GapReader {
+        List<Entry> read(long start, long end);
+    }
+
+    /**
+     * Writes the items of one data set, usually a reader's processDataSet.
+     */
+    interface DataSetWriter {
+        void write(DataSet dataSet, WritableArray out);
+    }
+
+    static synchronized AggregateCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new AggregateCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AggregateCache(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_KEY + " TEXT NOT NULL, "
+                + COLUMN_BUCKET_START + " INTEGER NOT NULL, "
+                + COLUMN_BUCKET_END + " INTEGER NOT NULL, "
+                + COLUMN_PAYLOAD + " TEXT NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_KEY + ", " + COLUMN_BUCKET_START + ", " + COLUMN_BUCKET_END + "))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // cached aggregates can always be read again from Google Fit
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Splits the range into cached runs and gaps, in order. Consecutive missing or open buckets form one gap,
+     * and when the cache is too fragmented the gaps are merged so a query never costs more than
+     * {@link #MAX_GAP_READS} Fit reads.
+     */
+    List<Segment> plan(String key, long startTime, long endTime, long bucketMillis) {
+        List<Segment> segments = new ArrayList<>();
+        if (startTime >= endTime) {
+            return segments;
+        }
+        if (!enabled || bucketMillis <= 0) {
+            segments.add(new Segment(startTime, endTime, null));
+            return segments;
+        }
+
+        long horizon = closedHorizon();
+        Map<Long, Entry> rows;
+        try {
+            rows = query(key, startTime, Math.min(endTime, horizon));
+        } catch (Exception e) {
+            Log.w(TAG, "Aggregate cache lookup failed: " + e);
+            segments.add(new Segment(startTime, endTime, null));
+            return segments;
+        }
+
+        int gaps = 0;
+        long bucketStart = startTime;
+        while (bucketStart < endTime) {
+            long bucketEnd = Math.min(bucketStart + bucketMillis, endTime);
+            Entry entry = rows.get(bucketStart);
+            boolean hit = bucketEnd <= horizon && entry != null && entry.bucketEnd == bucketEnd;
+
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last != null && last.isGap() == !hit) {
+                if (hit) {
+                    last.items.addAll(entry.items);
+                }
+                segments.set(segments.size() - 1, new Segment(last.start, bucketEnd, last.items));
+            } else {
+                segments.add(new Segment(bucketStart, bucketEnd, hit ? new ArrayList<>(entry.items) : null));
+                if (!hit) {
+                    gaps++;
+                }
+            }
+            bucketStart = bucketEnd;
+        }
+
+        return gaps > MAX_GAP_READS ? mergeGaps(segments) : segments;
+    }
+
+    /**
+     * Returns the items for the whole range, reading only the gaps of the plan and caching what they return.
+     */
+    ArrayList<Object> readThrough(String key, long startTime, long endTime, long bucketMillis,
+                                  GapReader reader) {
+        int generation = generation();
+        ArrayList<Object> items = new ArrayList<>();
+        for (Segment segment : plan(key, startTime, endTime, bucketMillis)) {
+            if (segment.isGap()) {
+                List<Entry> entries = reader.read(segment.start, segment.end);
+                for (Entry entry : entries) {
+                    items.addAll(entry.items);
+                }
+                store(key, entries, generation);
+            } else {
+                items.addAll(segment.items);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Turns a Fit read result into cache entries, one per bucket. Results without buckets are passed
+     * through as a single entry that is never cached.
+     */
+    static List<Entry> entries(List<Bucket> buckets, List<DataSet> dataSets, long startTime, long endTime,
+                               DataSetWriter writer) {
+        List<Entry> entries = new ArrayList<>();
+        //Used for aggregated data
+        if (buckets.size() > 0) {
+            for (Bucket bucket : buckets) {
+                WritableArray out = Arguments.createArray();
+                for (DataSet dataSet : bucket.getDataSets()) {
+                    writer.write(dataSet, out);
+                }
+                entries.add(new Entry(
+                        bucket.getStartTime(TimeUnit.MILLISECONDS),
+                        bucket.getEndTime(TimeUnit.MILLISECONDS),
+                        out.toArrayList(),
+                        true));
+            }
+        }
+        //Used for non-aggregated data
+        else if (dataSets.size() > 0) {
+            WritableArray out = Arguments.createArray();
+            for (DataSet dataSet : dataSets) {
+                writer.write(dataSet, out);
+            }
+            entries.add(new Entry(startTime, endTime, out.toArrayList(), false));
+        }
+        return entries;
+    }
+
+    /**
+     * Take it before {@link #plan}, and pass it to {@link #store} with the entries read for the plan.
+     */
+    int generation() {
+        return generation.get();
+    }
+
+    /**
+     * Writes the closed buckets among the given ones. Open buckets are skipped, and so are all entries if the
+     * cache was cleared since the given generation.
+     */
+    synchronized void store(String key, List<Entry> entries, int generation) {
+        if (!enabled || entries.isEmpty() || generation != this.generation.get()) {
+            return;
+        }
+
+        long horizon = closedHorizon();
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Entry entry : entries) {
+                    if (!entry.cacheable || entry.bucketEnd > horizon) {
+                        continue;
+                    }
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_KEY, key);
+                    values.put(COLUMN_BUCKET_START, entry.bucketStart);
+                    values.put(COLUMN_BUCKET_END, entry.bucketEnd);
+                    values.put(COLUMN_PAYLOAD, new JSONArray(entry.items).toString());
+                    db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Aggregate cache write failed: " + e);
+        }
+    }
+
+    void clear() {
+        generation.incrementAndGet();
+        synchronized (this) {
+            getWritableDatabase().delete(TABLE, null, null);
+        }
+    }
+
+    private Map<Long, Entry> query(String key, long startTime, long endTime) throws JSONException {
+        Map<Long, Entry> rows = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(
+                TABLE,
+                new String[]{COLUMN_BUCKET_START, COLUMN_BUCKET_END, COLUMN_PAYLOAD},
+                COLUMN_KEY + " = ? AND " + COLUMN_BUCKET_START + " >= ? AND " + COLUMN_BUCKET_END + " <= ?",
+                new String[]{key, String.valueOf(startTime), String.valueOf(endTime)},
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long bucketStart = cursor.getLong(0);
+                rows.put(bucketStart, new Entry(bucketStart, cursor.getLong(1), fromJson(cursor.getString(2)), true));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Collapses everything between the first and the last gap into a single gap.
+     */
+    private static List<Segment> mergeGaps(List<Segment> segments) {
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).isGap()) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+
+        List<Segment> merged = new ArrayList<>(segments.subList(0, first));
+        merged.add(new Segment(segments.get(first).start, segments.get(last).end, null));
+        merged.addAll(segments.subList(last + 1, segments.size()));
+        return merged;
+    }
+
+    /**
+     * Buckets ending at or before the start of the current local day are closed.
+     */
+    private static long closedHorizon() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static ArrayList<Object> fromJson(String payload) throws JSONException {
+        JSONArray array = new JSONArray(payload);
+        ArrayList<Object> items = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            items.add(fromJsonValue(array.get(i)));
+        }
+        return items;
+    }
+
+    private static Object fromJsonValue(Object value) throws JSONException {
+        if (value == JSONObject.NULL) {
+            return null;
+        }
+        if (value instanceof Number) {
+            // the bridge hands numbers out as doubles, keep cached items identical to fresh ones
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            HashMap<String, Object> map = new HashMap<>();
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String name = keys.next();
+                map.put(name, fromJsonValue(object.get(name)));
+            }
+            return map;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            ArrayList<Object> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                list.add(fromJsonValue(array.get(i)));
+            }
+            return list;
+        }
+        return value;
+    }
+}
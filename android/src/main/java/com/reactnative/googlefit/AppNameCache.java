@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of package name to application label.
+ *
+ * Every data point of a large read carries the package of the app that wrote it, but there are only
+ * a handful of distinct packages. Resolving the label is a binder call into the package manager, so
+ * it is done once per package and cached until the package is installed, updated or removed.
+ */
+final class AppNameCache {
+
+    // stored for packages without a label, so a missing package is not looked up over and over
+    private static final String NOT_FOUND = "";
+
+    private static final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+    private static volatile boolean receiverRegistered = false;
+
+    private AppNameCache() {
+    }
+
+    /**
+     * Returns the label of the given package, or null if the package is not installed.
+     */
+    static String get(Context context, String packageName) {
+        registerReceiver(context);
+
+        String name = names.get(packageName);
+        if (name == null) {
+            name = HelperUtil.getAppName(context.getPackageManager(), packageName);
+            if (name == null) {
+                name = NOT_FOUND;
+            }
+            names.put(packageName, name);
+        }
+        return name == NOT_FOUND ? null : name;
+    }
+
+    private static void registerReceiver(Context context) {
+        if (receiverRegistered) {
+            return;
+        }
+        synchronized (AppNameCache.class) {
+            if (receiverRegistered) {
+                return;
+            }
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            filter.addDataScheme("package");
+            context.getApplicationContext().registerReceiver(new PackageChangeReceiver(), filter);
+            receiverRegistered = true;
+        }
+    }
+
+    private static class PackageChangeReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (packageName != null) {
+                names.remove(packageName);
+            } else {
+                names.clear();
+            }
+        }
+    }
+}
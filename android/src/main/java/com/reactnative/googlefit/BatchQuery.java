@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.PromiseImpl;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Collects the results of the queries of one {@code batch} call and settles its promise once all are done.
+ *
+ * Every query gets its own promise from {@link #promise}, so it runs exactly like the single read method of
+ * its type and in parallel with the others. The batch resolves with {@code {results, errors}}, both keyed by
+ * query id; a failing query does not fail the batch.
+ */
+final class BatchQuery {
+
+    private final Promise promise;
+    private final WritableMap results = Arguments.createMap();
+    private final WritableMap errors = Arguments.createMap();
+    private int pending;
+
+    BatchQuery(int size, Promise promise) {
+        this.pending = size;
+        this.promise = promise;
+        if (size == 0) {
+            settle();
+        }
+    }
+
+    /**
+     * The promise a single query of the batch settles.
+     */
+    Promise promise(final String id) {
+        return new PromiseImpl(
+                args -> done(id, args.length > 0 ? args[0] : null, null),
+                args -> done(id, null, args.length > 0 ? args[0] : null));
+    }
+
+    /**
+     * Fails a query that could not be started, e.g. because of an unknown type.
+     */
+    void reject(String id, String code, String message) {
+        WritableMap error = Arguments.createMap();
+        error.putString("code", code);
+        error.putString("message", message);
+        done(id, null, error);
+    }
+
+    private void done(String id, Object result, Object error) {
+        synchronized (this) {
+            if (error != null) {
+                put(errors, id, error);
+            } else {
+                put(results, id, result);
+            }
+            if (--pending > 0) {
+                return;
+            }
+        }
+        settle();
+    }
+
+    private void settle() {
+        WritableMap batch = Arguments.createMap();
+        batch.putMap("results", results);
+        batch.putMap("errors", errors);
+        promise.resolve(batch);
+    }
+
+    private static void put(WritableMap target, String key, Object value) {
+        if (value == null) {
+            target.putNull(key);
+        } else if (value instanceof Boolean) {
+            target.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Number) {
+            target.putDouble(key, ((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            target.putString(key, (String) value);
+        } else if (value instanceof ReadableArray) {
+            target.putArray(key, (ReadableArray) value);
+        } else if (value instanceof ReadableMap) {
+            target.putMap(key, (ReadableMap) value);
+        } else {
+            target.putString(key, value.toString());
+        }
+    }
+}
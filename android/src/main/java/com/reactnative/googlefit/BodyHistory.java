@@ -9,7 +9,6 @@
 
 package com.reactnative.googlefit;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
@@ -28,6 +27,9 @@ import com.google.android.gms.fitness.data.Field;
 import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.result.DataReadResult;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
@@ -40,7 +42,6 @@ public class BodyHistory {
 
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
-    private DataSet Dataset;
     private DataType dataType;
 
     private static final String TAG = "Body History";
@@ -59,38 +60,69 @@ public class BodyHistory {
         this.dataType = dataType;
     }
 
-    public ReadableArray getHistory(long startTime, long endTime, int bucketInterval, String bucketUnit) {
+    public ReadableArray getHistory(long startTime, long endTime, int bucketInterval, String bucketUnit, QueryContext query) {
         // for height we need to take time, since GoogleFit foundation - https://stackoverflow.com/questions/28482176/read-the-height-in-googlefit-in-android
         startTime = this.dataType == DataType.TYPE_WEIGHT ? startTime : 1401926400;
-        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS);
 
-        if (this.dataType == DataType.TYPE_WEIGHT) {
-
-            // old method:
-            // In general here we want to set the bucket size to the smallest possible allowed, in case the
-            // user weighs themselves in a short interval (e.g. before and after a meal)
-            //
-            // The Google Fit API seems to have a limit of around 3,000 as the maximum number of buckets that
-            // can be returned in an aggregated query - anything more than this and the fitness API takes
-            // ages to respond and/or no response at all on both Galaxy S5 (6.0.1) and Huawei P9 Lite (7.0)
-            //
-            // So, divide the time range by 2,000 to be on the safe side
-//            long bucketSizeMillis = (endTime - startTime) / 2000;
+        // old method:
+        // In general here we want to set the bucket size to the smallest possible allowed, in case the
+        // user weighs themselves in a short interval (e.g. before and after a meal)
+        //
+        // The Google Fit API seems to have a limit of around 3,000 as the maximum number of buckets that
+        // can be returned in an aggregated query - anything more than this and the fitness API takes
+        // ages to respond and/or no response at all on both Galaxy S5 (6.0.1) and Huawei P9 Lite (7.0)
+        //
+        // So, divide the time range by 2,000 to be on the safe side
+//        long bucketSizeMillis = (endTime - startTime) / 2000;
 //
-//            // We don't need any finer granularity than 1 minute, so make buckets at least this size to keep
-//            // the number of buckets low if not much time has elapsed since the last query
-//            bucketSizeMillis = Math.max(bucketSizeMillis, 60 * 1000);
+//        // We don't need any finer granularity than 1 minute, so make buckets at least this size to keep
+//        // the number of buckets low if not much time has elapsed since the last query
+//        bucketSizeMillis = Math.max(bucketSizeMillis, 60 * 1000);
+
+
+        // new method:
+        // let users to provide their own bucket size, handle the limit risk by themselves so they are able to
+        // get the most accurate data for their own need.
+        //
+        // The limit is handled by splitting long ranges into shards of at most 2,000 buckets which are read
+        // side by side, see ShardedRead. Height is a single point and is read in one go.
+        long shardMillis = this.dataType == DataType.TYPE_WEIGHT
+                ? ShardedRead.shardMillisForBuckets(HelperUtil.processBucketUnit(bucketUnit).toMillis(bucketInterval))
+                : Long.MAX_VALUE;
+        List<DataReadResult> results = ShardedRead.read(startTime, endTime, shardMillis,
+                (shardStart, shardEnd) -> readData(shardStart, shardEnd, bucketInterval, bucketUnit, query));
+        query.throwIfCancelled();
 
+        WritableArray map = Arguments.createArray();
+        for (DataReadResult dataReadResult : results) {
+            //Used for aggregated data
+            if (dataReadResult.getBuckets().size() > 0) {
+                for (Bucket bucket : dataReadResult.getBuckets()) {
+                    List<DataSet> dataSets = bucket.getDataSets();
+                    for (DataSet dataSet : dataSets) {
+                        processDataSet(dataSet, map);
+                    }
+                }
+            }
+            //Used for non-aggregated data
+            else if (dataReadResult.getDataSets().size() > 0) {
+                for (DataSet dataSet : dataReadResult.getDataSets()) {
+                    processDataSet(dataSet, map);
+                }
+            }
+        }
+        return map;
+    }
 
-            // new method:
-            // let users to provide their own bucket size, handle the limit risk by themselves so they are able to
-            // get the most accurate data for their own need.
+    private DataReadResult readData(long startTime, long endTime, int bucketInterval, String bucketUnit,
+                                    QueryContext query) {
+        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
+                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS);
 
+        if (this.dataType == DataType.TYPE_WEIGHT) {
             readRequestBuilder
                 .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
                 .aggregate(this.dataType, DataType.AGGREGATE_WEIGHT_SUMMARY);
-
         } else {
             readRequestBuilder.read(this.dataType);
             readRequestBuilder.setLimit(1); // need only one height, since it's unchangable
@@ -98,40 +130,24 @@ public class BodyHistory {
 
         DataReadRequest readRequest = readRequestBuilder.build();
 
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
-
-        WritableArray map = Arguments.createArray();
+        return googleFitManager.getReadCoalescer().await(
+            ReadCoalescer.key("body", dataType.getName(), startTime, endTime, bucketInterval, bucketUnit), query,
+            () -> Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(ReadCoalescer.READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+    }
 
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
-                }
-            }
-        }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
-            }
-        }
-        return map;
+    public long save(ReadableMap sample) {
+        return googleFitManager.getWriteOutbox().enqueue(outboxKind(), sample);
     }
 
-    public boolean save(ReadableMap sample) {
-        this.Dataset = createDataForRequest(
-                this.dataType,    // for height, it would be DataType.TYPE_HEIGHT
-                DataSource.TYPE_RAW,
-                sample.getDouble("value"),                  // weight in kgs, height in metrs
-                (long)sample.getDouble("date"),              // start time
-                (long)sample.getDouble("date"),                // end time
-                TimeUnit.MILLISECONDS                // Time Unit, for example, TimeUnit.MILLISECONDS
-        );
-        new InsertAndVerifyDataTask(this.Dataset).execute();
+    /**
+     * Saves many samples at once, e.g. an import from a scale. They are inserted in a few chunked requests.
+     */
+    public long saveAll(ReadableArray samples) {
+        return googleFitManager.getWriteOutbox().enqueue(outboxKind(), samples);
+    }
 
-        return true;
+    String outboxKind() {
+        return this.dataType == DataType.TYPE_WEIGHT ? WriteOutbox.KIND_WEIGHT : WriteOutbox.KIND_HEIGHT;
     }
 
     public boolean delete(ReadableMap sample) {
@@ -141,66 +157,25 @@ public class BodyHistory {
         return true;
     }
 
-    //Async fit data insert
-    private class InsertAndVerifyDataTask extends AsyncTask<Void, Void, Void> {
-
-        private DataSet Dataset;
-
-        InsertAndVerifyDataTask(DataSet dataset) {
-            this.Dataset = dataset;
-        }
-
-        protected Void doInBackground(Void... params) {
-            // Create a new dataset and insertion request.
-            DataSet dataSet = this.Dataset;
-
-            // [START insert_dataset]
-            // Then, invoke the History API to insert the data and await the result, which is
-            // possible here because of the {@link AsyncTask}. Always include a timeout when calling
-            // await() to prevent hanging that can occur from the service being shutdown because
-            // of low memory or other conditions.
-            //Log.i(TAG, "Inserting the dataset in the History API.");
-            com.google.android.gms.common.api.Status insertStatus =
-                    Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
-                            .await(1, TimeUnit.MINUTES);
-
-            // Before querying the data, check to see if the insertion succeeded.
-            if (!insertStatus.isSuccess()) {
-                //Log.i(TAG, "There was a problem inserting the dataset.");
-                return null;
-            }
-
-            //Log.i(TAG, "Data insert was successful!");
-
-            return null;
-        }
-    }
-
     /**
      * This method creates a dataset object to be able to insert data in google fit
-     * @param dataType DataType Fitness Data Type object
-     * @param dataSourceType int Data Source Id. For example, DataSource.TYPE_RAW
-     * @param value Object Values for the fitness data. They must be int or float
-     * @param startTime long Time when the fitness activity started
-     * @param endTime long Time when the fitness activity finished
-     * @param timeUnit TimeUnit Time unit in which period is expressed
+     * @param samples List Samples as passed to save(), weight in kgs, height in metrs
      * @return
      */
-    private DataSet createDataForRequest(DataType dataType, int dataSourceType, Double value,
-                                         long startTime, long endTime, TimeUnit timeUnit) {
+    DataSet createDataForRequest(List<JSONObject> samples) throws JSONException {
         DataSource dataSource = new DataSource.Builder()
                 .setAppPackageName(GoogleFitPackage.PACKAGE_NAME)
-                .setDataType(dataType)
-                .setType(dataSourceType)
+                .setDataType(this.dataType)    // for height, it would be DataType.TYPE_HEIGHT
+                .setType(DataSource.TYPE_RAW)
                 .build();
 
         DataSet dataSet = DataSet.create(dataSource);
-        DataPoint dataPoint = dataSet.createDataPoint().setTimeInterval(startTime, endTime, timeUnit);
-
-        float f1 = Float.valueOf(value.toString());
-        dataPoint = dataPoint.setFloatValues(f1);
-
-        dataSet.add(dataPoint);
+        for (JSONObject sample : samples) {
+            long date = sample.getLong("date");
+            DataPoint dataPoint = dataSet.createDataPoint().setTimeInterval(date, date, TimeUnit.MILLISECONDS);
+            dataPoint = dataPoint.setFloatValues((float) sample.getDouble("value"));
+            dataSet.add(dataPoint);
+        }
 
         return dataSet;
     }
@@ -10,7 +10,6 @@
 
 package com.reactnative.googlefit;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
@@ -30,140 +29,240 @@ import com.google.android.gms.fitness.data.Field;
 import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.result.DataReadResult;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 
 public class CalorieHistory {
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
-    private DataSet FoodDataSet;
 
     private static final String TAG = "CalorieHistory";
+    private static final String CACHE_KEY = "calories";
+    private static final String CACHE_KEY_BASAL_DAYS = "basal_days";
 
     public CalorieHistory(ReactContext reactContext, GoogleFitManager googleFitManager) {
         this.mReactContext = reactContext;
         this.googleFitManager = googleFitManager;
     }
 
-    public ReadableArray aggregateDataByDate(long startTime, long endTime, boolean basalCalculation, int bucketInterval, String bucketUnit) {
+    public ReadableArray aggregateDataByDate(long startTime, long endTime, boolean basalCalculation, int bucketInterval, String bucketUnit,
+                                             QueryContext query) {
 
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
-        Log.i(TAG, "Range End: " + dateFormat.format(endTime));
+        if (FitLog.isLoggable(Log.INFO)) {
+            Log.i(TAG, "Range Start: " + FitLog.time(startTime));
+            Log.i(TAG, "Range End: " + FitLog.time(endTime));
+        }
 
-        //Check how much calories were expended in specific days.
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED)
-                .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                .build();
+        // closed buckets come from the cache, only the gaps between them go to Google Fit
+        long bucketMillis = HelperUtil.processBucketUnit(bucketUnit).toMillis(bucketInterval);
+        // only the calories as Fit returns them are cached, the basal part is subtracted on every read
+        ArrayList<Object> items = AggregateCache.getInstance(mReactContext).readThrough(
+                CACHE_KEY, startTime, endTime, bucketMillis, (gapStart, gapEnd) -> {
+                    //Check how much calories were expended in specific days.
+                    boolean traced = FitTrace.begin("calories:request");
+                    DataReadRequest readRequest = new DataReadRequest.Builder()
+                            .aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED)
+                            .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
+                            .setTimeRange(gapStart, gapEnd, TimeUnit.MILLISECONDS)
+                            .build();
+                    FitTrace.end(traced);
+
+                    DataReadResult dataReadResult = googleFitManager.getReadCoalescer().await(
+                            ReadCoalescer.key("calories", gapStart, gapEnd, bucketInterval, bucketUnit), query,
+                            () -> Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(ReadCoalescer.READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+
+                    if (FitLog.isLoggable(Log.INFO)) {
+                        Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
+                    }
+                    traced = FitTrace.begin("calories:process");
+                    List<AggregateCache.Entry> entries = AggregateCache.entries(dataReadResult.getBuckets(),
+                            dataReadResult.getDataSets(), gapStart, gapEnd, this::processDataSet);
+                    FitTrace.end(traced);
+                    return entries;
+                });
+
+        if (basalCalculation) {
+            // one basal read for the whole range instead of one per data point, the days come from the cache
+            TreeMap<Long, Float> basalSeries = getBasalSeries(startTime, endTime, query);
+            boolean traced = FitTrace.begin("calories:basal");
+            subtractBasal(items, basalSeries);
+            FitTrace.end(traced);
+        }
+
+        boolean traced = FitTrace.begin("calories:build");
+        ReadableArray result = Arguments.makeNativeArray(items);
+        FitTrace.end(traced);
+        return result;
+    }
 
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
 
+    /**
+     * Daily basal metabolic rate averages, keyed by the local start of the day, covering [startTime - 1 week, endTime].
+     *
+     * Replaces a one-week read per data point: the series is read once per range and each point is joined
+     * with it in memory, see {@link #getBasalAVG}. The averages of days that are over go through the
+     * {@link AggregateCache} like the other daily aggregates, so later queries only read the days they have not
+     * seen yet. Days without data are left out and read again, Fit may still receive a sample for them.
+     */
+    private TreeMap<Long, Float> getBasalSeries(long startTime, long endTime, QueryContext query) {
+        TreeMap<Long, Float> series = new TreeMap<>();
+        ArrayList<Object> days;
+        try {
+            days = AggregateCache.getInstance(mReactContext).readThrough(
+                    CACHE_KEY_BASAL_DAYS, startOfDay(startTime - TimeUnit.DAYS.toMillis(7)), endTime,
+                    TimeUnit.DAYS.toMillis(1), (gapStart, gapEnd) -> readBasalDays(gapStart, gapEnd, query));
+        } catch (IllegalStateException e) {
+            // calories are still returned, without the basal part
+            Log.w(TAG, "Basal metabolic rate read failed: " + e.getMessage());
+            return series;
+        }
 
-        WritableArray map = Arguments.createArray();
+        for (Object item : days) {
+            Map<?, ?> day = (Map<?, ?>) item;
+            series.put(((Number) day.get("day")).longValue(), ((Number) day.get("average")).floatValue());
+        }
+        return series;
+    }
 
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map, basalCalculation);
+    /**
+     * One cache entry per daily bucket of [startTime, endTime], holding {@code {day, average}} if the day has data.
+     */
+    private List<AggregateCache.Entry> readBasalDays(long startTime, long endTime, QueryContext query) {
+        boolean traced = FitTrace.begin("basal:request");
+        DataReadRequest readRequest = new DataReadRequest.Builder()
+                .aggregate(DataType.TYPE_BASAL_METABOLIC_RATE, DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY)
+                .bucketByTime(1, TimeUnit.DAYS)
+                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
+                .build();
+        FitTrace.end(traced);
+
+        DataReadResult dataReadResult = googleFitManager.getReadCoalescer().await(
+                ReadCoalescer.key("basal", startTime, endTime), query,
+                () -> Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(ReadCoalescer.READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+        query.throwIfCancelled();
+
+        traced = FitTrace.begin("basal:process");
+        List<AggregateCache.Entry> entries = new ArrayList<>();
+        for (Bucket bucket : dataReadResult.getBuckets()) {
+            long bucketStart = bucket.getStartTime(TimeUnit.MILLISECONDS);
+            long bucketEnd = bucket.getEndTime(TimeUnit.MILLISECONDS);
+            // 24h buckets drift from local midnight around DST switches, their middle is always in the right day
+            long day = startOfDay(bucketStart + (bucketEnd - bucketStart) / 2);
+
+            // in the com.google.bmr.summary data type, each data point represents
+            // the average, maximum and minimum basal metabolic rate, in kcal per day, over the time interval of the data point.
+            float avg = Float.NaN;
+            DataSet ds = bucket.getDataSet(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
+            if (ds != null) {
+                for (DataPoint dp : ds.getDataPoints()) {
+                    avg = dp.getValue(Field.FIELD_AVERAGE).asFloat();
                 }
             }
-        }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            Log.i(TAG, "Number of returned DataSets: " + dataReadResult.getDataSets().size());
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map, basalCalculation);
+
+            ArrayList<Object> items = new ArrayList<>(1);
+            if (!Float.isNaN(avg)) {
+                Map<String, Object> item = new HashMap<>();
+                item.put("day", (double) day);
+                item.put("average", (double) avg);
+                items.add(item);
             }
+            // a day without data is never cached, so a sample that is synced later is still picked up
+            entries.add(new AggregateCache.Entry(bucketStart, bucketEnd, items, !items.isEmpty()));
         }
-
-        return map;
+        FitTrace.end(traced);
+        return entries;
     }
 
-
-    // utility function that gets the basal metabolic rate averaged over a week
-    private float getBasalAVG(long _et) throws Exception {
+    // basal metabolic rate averaged over the week before the given time, the average of the daily averages
+    private float getBasalAVG(TreeMap<Long, Float> series, long _et) {
         float basalAVG = 0;
-        Calendar cal = java.util.Calendar.getInstance();
-        cal.setTime(new Date(_et));
-        //set start time to a week before end time
-        cal.add(Calendar.WEEK_OF_YEAR, -1);
-        long nst = cal.getTimeInMillis();
-
-        DataReadRequest.Builder builder = new DataReadRequest.Builder();
-        builder.aggregate(DataType.TYPE_BASAL_METABOLIC_RATE, DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
-        builder.bucketByTime(1, TimeUnit.DAYS);
-        builder.setTimeRange(nst, _et, TimeUnit.MILLISECONDS);
-        DataReadRequest readRequest = builder.build();
-
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await();
-
-        if (dataReadResult.getStatus().isSuccess()) {
-            JSONObject obj = new JSONObject();
-            int avgsN = 0;
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                // in the com.google.bmr.summary data type, each data point represents
-                // the average, maximum and minimum basal metabolic rate, in kcal per day, over the time interval of the data point.
-                DataSet ds = bucket.getDataSet(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
-                for (DataPoint dp : ds.getDataPoints()) {
-                    float avg = dp.getValue(Field.FIELD_AVERAGE).asFloat();
-                    basalAVG += avg;
-                    avgsN++;
-                }
+        int avgsN = 0;
+        long weekBefore = _et - TimeUnit.DAYS.toMillis(7);
+        for (Map.Entry<Long, Float> day : series.headMap(_et, false).entrySet()) {
+            if (nextDay(day.getKey()) <= weekBefore || Float.isNaN(day.getValue())) {
+                continue;
             }
-            // do the average of the averages
-            if (avgsN != 0) basalAVG /= avgsN; // this a daily average
-            return basalAVG;
-        } else throw new Exception(dataReadResult.getStatus().getStatusMessage());
+            basalAVG += day.getValue();
+            avgsN++;
+        }
+        // do the average of the averages
+        if (avgsN != 0) basalAVG /= avgsN; // this a daily average
+        return basalAVG;
     }
 
+    private static long startOfDay(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTimeInMillis();
+    }
+
+    private static long nextDay(long dayStart) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(dayStart);
+        cal.add(Calendar.DAY_OF_MONTH, 1);
+        return cal.getTimeInMillis();
+    }
+
+
+    /**
+     * Subtracts the basal metabolic rate of the week before each sample from its calories. Done on every read,
+     * the basal series may still lack days that Fit receives later.
+     */
+    @SuppressWarnings("unchecked")
+    private void subtractBasal(List<Object> items, TreeMap<Long, Float> basalSeries) {
+        for (Object item : items) {
+            Map<String, Object> sample = (Map<String, Object>) item;
+            float basal = getBasalAVG(basalSeries, ((Number) sample.get("endDate")).longValue());
+            sample.put("calorie", (double) (((Number) sample.get("calorie")).floatValue() - basal));
+        }
+    }
 
-    private void processDataSet(DataSet dataSet, WritableArray map, boolean basalCalculation) {
-        Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        DateFormat timeFormat = DateFormat.getTimeInstance();
+    private void processDataSet(DataSet dataSet, WritableArray map) {
+        if (FitLog.isLoggable(Log.INFO)) {
+            Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
+        }
         Format formatter = new SimpleDateFormat("EEE");
         WritableMap stepMap = Arguments.createMap();
 
 
         for (DataPoint dp : dataSet.getDataPoints()) {
-            Log.i(TAG, "Data point:");
-            Log.i(TAG, "\tType: " + dp.getDataType().getName());
-            Log.i(TAG, "\tStart: " + dateFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)) + " " + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "\tEnd: " + dateFormat.format(dp.getEndTime(TimeUnit.MILLISECONDS)) + " " + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
+            boolean logPoint = FitLog.point(TAG, Log.INFO);
+            if (logPoint) {
+                Log.i(TAG, "Data point:");
+                Log.i(TAG, "\tType: " + dp.getDataType().getName());
+                Log.i(TAG, "\tStart: " + FitLog.time(dp.getStartTime(TimeUnit.MILLISECONDS)));
+                Log.i(TAG, "\tEnd: " + FitLog.time(dp.getEndTime(TimeUnit.MILLISECONDS)));
+            }
 
             String day = formatter.format(new Date(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "Day: " + day);
 
             for (Field field : dp.getDataType().getFields()) {
-                Log.i("History", "\tField: " + field.getName() +
-                        " Value: " + dp.getValue(field));
+                if (logPoint) {
+                    Log.i(TAG, "\tField: " + field.getName() + " Value: " + dp.getValue(field));
+                }
 
                 stepMap.putString("day", day);
                 stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
                 stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
-                float basal = 0;
-                if (basalCalculation) {
-                    try {
-                        basal = getBasalAVG(dp.getEndTime(TimeUnit.MILLISECONDS));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-                stepMap.putDouble("calorie", dp.getValue(field).asFloat() - basal);
+                stepMap.putDouble("calorie", dp.getValue(field).asFloat());
 
                 /** Checks if data point was added manually by user */
                 DataSource ds = dp.getOriginalDataSource();
@@ -179,94 +278,49 @@ public class CalorieHistory {
         }
     }
 
-    public boolean saveFood(ReadableMap foodSample) {
-        this.FoodDataSet = createDataForRequest(
-                DataType.TYPE_NUTRITION,    // for height, it would be DataType.TYPE_HEIGHT
-                DataSource.TYPE_RAW,
-                foodSample.getMap("nutrients").toHashMap(),
-                foodSample.getInt("mealType"),                  // meal type
-                foodSample.getString("foodName"),               // food name
-                (long)foodSample.getDouble("date"),             // start time
-                (long)foodSample.getDouble("date"),             // end time
-                TimeUnit.MILLISECONDS                // Time Unit, for example, TimeUnit.MILLISECONDS
-        );
-        new CalorieHistory.InsertAndVerifyDataTask(this.FoodDataSet).execute();
-
-        return true;
+    public long saveFood(ReadableMap foodSample) {
+        return googleFitManager.getWriteOutbox().enqueue(WriteOutbox.KIND_FOOD, foodSample);
     }
 
-    //Async fit data insert
-    private class InsertAndVerifyDataTask extends AsyncTask<Void, Void, Void> {
-
-        private DataSet FoodDataset;
-
-        InsertAndVerifyDataTask(DataSet dataset) {
-            this.FoodDataset = dataset;
-        }
-
-        protected Void doInBackground(Void... params) {
-            // Create a new dataset and insertion request.
-            DataSet dataSet = this.FoodDataset;
-
-            // [START insert_dataset]
-            // Then, invoke the History API to insert the data and await the result, which is
-            // possible here because of the {@link AsyncTask}. Always include a timeout when calling
-            // await() to prevent hanging that can occur from the service being shutdown because
-            // of low memory or other conditions.
-            //Log.i(TAG, "Inserting the dataset in the History API.");
-            com.google.android.gms.common.api.Status insertStatus =
-                    Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
-                            .await(1, TimeUnit.MINUTES);
-
-            // Before querying the data, check to see if the insertion succeeded.
-            if (!insertStatus.isSuccess()) {
-                //Log.i(TAG, "There was a problem inserting the dataset.");
-                return null;
-            }
-
-            //Log.i(TAG, "Data insert was successful!");
-
-            return null;
-        }
+    public long saveFood(ReadableArray foodSamples) {
+        return googleFitManager.getWriteOutbox().enqueue(WriteOutbox.KIND_FOOD, foodSamples);
     }
 
     /**
      * This method creates a dataset object to be able to insert data in google fit
      *
-     * @param dataType       DataType Fitness Data Type object
-     * @param dataSourceType int Data Source Id. For example, DataSource.TYPE_RAW
-     * @param values         Object Values for the fitness data. They must be HashMap
-     * @param mealType       int Value of enum. For example Field.MEAL_TYPE_SNACK
-     * @param name           String Dish name. For example "banana"
-     * @param startTime      long Time when the fitness activity started
-     * @param endTime        long Time when the fitness activity finished
-     * @param timeUnit       TimeUnit Time unit in which period is expressed
+     * @param samples List Samples as passed to saveFood(): nutrients, mealType (for example Field.MEAL_TYPE_SNACK),
+     *                foodName (for example "banana") and date
      * @return
      */
-    private DataSet createDataForRequest(DataType dataType, int dataSourceType,
-                                         HashMap<String, Object> values, int mealType, String name,
-                                         long startTime, long endTime, TimeUnit timeUnit) {
+    DataSet createDataForRequest(List<JSONObject> samples) throws JSONException {
 
         DataSource dataSource = new DataSource.Builder()
                 .setAppPackageName(GoogleFitPackage.PACKAGE_NAME)
-                .setDataType(dataType)
-                .setType(dataSourceType)
+                .setDataType(DataType.TYPE_NUTRITION)
+                .setType(DataSource.TYPE_RAW)
                 .build();
 
         DataSet dataSet = DataSet.create(dataSource);
-        DataPoint dataPoint = dataSet.createDataPoint().setTimeInterval(startTime, endTime, timeUnit);
-
-        dataPoint.getValue(Field.FIELD_FOOD_ITEM).setString(name);
-        dataPoint.getValue(Field.FIELD_MEAL_TYPE).setInt(mealType);
-        for (String key : values.keySet()) {
-            Float value = Float.valueOf(values.get(key).toString());
-
-            if (value > 0) {
-                dataPoint.getValue(Field.FIELD_NUTRIENTS).setKeyValue(key, value);
+        for (JSONObject sample : samples) {
+            long date = sample.getLong("date");
+            DataPoint dataPoint = dataSet.createDataPoint().setTimeInterval(date, date, TimeUnit.MILLISECONDS);
+
+            dataPoint.getValue(Field.FIELD_FOOD_ITEM).setString(sample.getString("foodName"));
+            dataPoint.getValue(Field.FIELD_MEAL_TYPE).setInt(sample.getInt("mealType"));
+            JSONObject values = sample.getJSONObject("nutrients");
+            Iterator<String> keys = values.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                float value = (float) values.getDouble(key);
+
+                if (value > 0) {
+                    dataPoint.getValue(Field.FIELD_NUTRIENTS).setKeyValue(key, value);
+                }
             }
-        }
 
-        dataSet.add(dataPoint);
+            dataSet.add(dataPoint);
+        }
 
         return dataSet;
     }
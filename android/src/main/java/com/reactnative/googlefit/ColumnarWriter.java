@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the {@code format: 'columnar'} response of a read: parallel arrays instead of one map per point.
+ *
+ * The result has {@code startDate}, {@code endDate}, {@code sourceIndex} and {@code value} arrays plus one
+ * array per additional numeric field (e.g. {@code min} / {@code max}). {@code sourceIndex} points into the
+ * {@code sources} array of data source stream ids. Missing values are sent as null.
+ */
+final class ColumnarWriter {
+
+    static final String VALUE = "value";
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int NO_SOURCE = -1;
+
+    private int size = 0;
+    private int capacity = INITIAL_CAPACITY;
+    private double[] startDates = new double[INITIAL_CAPACITY];
+    private double[] endDates = new double[INITIAL_CAPACITY];
+    private int[] sourceIndexes = new int[INITIAL_CAPACITY];
+    private final Map<String, double[]> columns = new LinkedHashMap<>();
+    private final SourceDictionary sources = new SourceDictionary();
+
+    /**
+     * Converts rows built by a reader's processDataSet. The {@code valueKey} field becomes the value column.
+     */
+    @SuppressWarnings("unchecked")
+    static ColumnarWriter fromRows(List<Object> rows, String valueKey) {
+        ColumnarWriter writer = new ColumnarWriter();
+        for (Object item : rows) {
+            Map<String, Object> row = (Map<String, Object>) item;
+            Object sourceId = row.get("originDataSourceId");
+            writer.row(
+                    ((Number) row.get("startDate")).longValue(),
+                    ((Number) row.get("endDate")).longValue(),
+                    sourceId instanceof String ? (String) sourceId : null);
+
+            for (Map.Entry<String, Object> field : row.entrySet()) {
+                String key = field.getKey();
+                if (!(field.getValue() instanceof Number) || key.equals("startDate") || key.equals("endDate")) {
+                    continue;
+                }
+                writer.put(key.equals(valueKey) ? VALUE : key, ((Number) field.getValue()).doubleValue());
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * Starts a new point. Values of the point are added with {@link #put}.
+     */
+    void row(long startDate, long endDate, @Nullable String sourceId) {
+        if (size == capacity) {
+            grow();
+        }
+        startDates[size] = startDate;
+        endDates[size] = endDate;
+        sourceIndexes[size] = sourceId != null ? sources.indexOf(sourceId) : NO_SOURCE;
+        for (double[] column : columns.values()) {
+            column[size] = Double.NaN;
+        }
+        size++;
+    }
+
+    void put(String column, double value) {
+        double[] values = columns.get(column);
+        if (values == null) {
+            values = new double[capacity];
+            Arrays.fill(values, Double.NaN);
+            columns.put(column, values);
+        }
+        values[size - 1] = value;
+    }
+
+    WritableMap toWritableMap() {
+        WritableArray startDate = Arguments.createArray();
+        WritableArray endDate = Arguments.createArray();
+        WritableArray sourceIndex = Arguments.createArray();
+        for (int i = 0; i < size; i++) {
+            startDate.pushDouble(startDates[i]);
+            endDate.pushDouble(endDates[i]);
+            if (sourceIndexes[i] == NO_SOURCE) {
+                sourceIndex.pushNull();
+            } else {
+                sourceIndex.pushInt(sourceIndexes[i]);
+            }
+        }
+
+        WritableMap result = Arguments.createMap();
+        result.putArray("startDate", startDate);
+        result.putArray("endDate", endDate);
+        result.putArray("sourceIndex", sourceIndex);
+        if (!columns.containsKey(VALUE)) {
+            result.putArray(VALUE, nulls());
+        }
+        for (Map.Entry<String, double[]> column : columns.entrySet()) {
+            WritableArray values = Arguments.createArray();
+            double[] data = column.getValue();
+            for (int i = 0; i < size; i++) {
+                if (Double.isNaN(data[i])) {
+                    values.pushNull();
+                } else {
+                    values.pushDouble(data[i]);
+                }
+            }
+            result.putArray(column.getKey(), values);
+        }
+
+        result.putArray("sources", sources.toIdArray());
+        return result;
+    }
+
+    private WritableArray nulls() {
+        WritableArray values = Arguments.createArray();
+        for (int i = 0; i < size; i++) {
+            values.pushNull();
+        }
+        return values;
+    }
+
+    private void grow() {
+        capacity *= 2;
+        startDates = Arrays.copyOf(startDates, capacity);
+        endDates = Arrays.copyOf(endDates, capacity);
+        sourceIndexes = Arrays.copyOf(sourceIndexes, capacity);
+        for (Map.Entry<String, double[]> column : columns.entrySet()) {
+            column.setValue(Arrays.copyOf(column.getValue(), capacity));
+        }
+    }
+}
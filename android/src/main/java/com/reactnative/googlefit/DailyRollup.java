@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sums samples into local calendar days, the native counterpart of {@code buildDailySteps} in src/utils.js.
+ *
+ * Day boundaries come from {@link Calendar} in the default time zone, so days that are 23 or 25 hours long
+ * because of a DST switch are grouped correctly. The boundaries are only recomputed when a sample falls
+ * outside the current day, which is rare as the samples come in time order.
+ */
+final class DailyRollup {
+
+    private DailyRollup() {
+    }
+
+    /**
+     * Groups the rows by the local day of their {@code endDate} and sums their {@code valueKey} field.
+     * Returns one {@code {date: 'YYYY-MM-DD', value}} map per day, in the order the days first appear.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Object> byEndDate(List<Object> rows, String valueKey) {
+        Calendar calendar = Calendar.getInstance();
+        Map<Long, double[]> totals = new LinkedHashMap<>();
+
+        long dayStart = Long.MAX_VALUE;
+        long nextDayStart = Long.MIN_VALUE;
+        double[] current = null;
+        for (Object item : rows) {
+            Map<String, Object> row = (Map<String, Object>) item;
+            Object value = row.get(valueKey);
+            Object endDate = row.get("endDate");
+            if (!(value instanceof Number) || !(endDate instanceof Number)) {
+                continue;
+            }
+
+            long end = ((Number) endDate).longValue();
+            if (end < dayStart || end >= nextDayStart) {
+                calendar.setTimeInMillis(end);
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.set(Calendar.SECOND, 0);
+                calendar.set(Calendar.MILLISECOND, 0);
+                dayStart = calendar.getTimeInMillis();
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+                nextDayStart = calendar.getTimeInMillis();
+
+                current = totals.get(dayStart);
+                if (current == null) {
+                    current = new double[1];
+                    totals.put(dayStart, current);
+                }
+            }
+            current[0] += ((Number) value).doubleValue();
+        }
+
+        List<Object> days = new ArrayList<>(totals.size());
+        for (Map.Entry<Long, double[]> total : totals.entrySet()) {
+            Map<String, Object> day = new HashMap<>();
+            day.put("date", formatDay(calendar, total.getKey()));
+            day.put("value", total.getValue()[0]);
+            days.add(day);
+        }
+        return days;
+    }
+
+    private static String formatDay(Calendar calendar, long dayStart) {
+        calendar.setTimeInMillis(dayStart);
+        int month = calendar.get(Calendar.MONTH) + 1;
+        int day = calendar.get(Calendar.DAY_OF_MONTH);
+        return calendar.get(Calendar.YEAR) + (month < 10 ? "-0" : "-") + month + (day < 10 ? "-0" : "-") + day;
+    }
+}
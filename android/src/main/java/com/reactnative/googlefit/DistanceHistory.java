@@ -31,6 +31,7 @@ import com.google.android.gms.fitness.result.DataReadResult;
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -42,73 +43,72 @@ public class DistanceHistory {
     private GoogleFitManager googleFitManager;
 
     private static final String TAG = "DistanceHistory";
+    private static final String CACHE_KEY = "distance";
 
     public DistanceHistory(ReactContext reactContext, GoogleFitManager googleFitManager){
         this.mReactContext = reactContext;
         this.googleFitManager = googleFitManager;
     }
 
-    public ReadableArray aggregateDataByDate(long startTime, long endTime, int bucketInterval, String bucketUnit) {
+    public Object aggregateDataByDate(long startTime, long endTime, int bucketInterval, String bucketUnit,
+                                      QueryContext query) {
 
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
-        Log.i(TAG, "Range End: " + dateFormat.format(endTime));
-
-        //Check how much distance were walked and recorded in specified days
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA)
-                .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                .build();
-
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
-
-
-        WritableArray map = Arguments.createArray();
-
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
-                }
-            }
-        }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            Log.i(TAG, "Number of returned DataSets: " + dataReadResult.getDataSets().size());
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
-            }
+        if (FitLog.isLoggable(Log.INFO)) {
+            Log.i(TAG, "Range Start: " + FitLog.time(startTime));
+            Log.i(TAG, "Range End: " + FitLog.time(endTime));
         }
 
-        return map;
+        // closed buckets come from the cache, only the gaps between them go to Google Fit
+        long bucketMillis = HelperUtil.processBucketUnit(bucketUnit).toMillis(bucketInterval);
+        ArrayList<Object> items = AggregateCache.getInstance(mReactContext).readThrough(
+                CACHE_KEY, startTime, endTime, bucketMillis, (gapStart, gapEnd) -> {
+                    //Check how much distance were walked and recorded in specified days
+                    DataReadRequest readRequest = new DataReadRequest.Builder()
+                            .aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA)
+                            .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
+                            .setTimeRange(gapStart, gapEnd, TimeUnit.MILLISECONDS)
+                            .build();
+
+                    DataReadResult dataReadResult = googleFitManager.getReadCoalescer().await(
+                            ReadCoalescer.key("distance", gapStart, gapEnd, bucketInterval, bucketUnit), query,
+                            () -> Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(ReadCoalescer.READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+                    query.throwIfCancelled();
+
+                    if (FitLog.isLoggable(Log.INFO)) {
+                        Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
+                    }
+                    return AggregateCache.entries(dataReadResult.getBuckets(), dataReadResult.getDataSets(),
+                            gapStart, gapEnd, this::processDataSet);
+                });
+
+        return query.format(items, "distance");
     }
 
 
     private void processDataSet(DataSet dataSet, WritableArray map) {
-        Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        DateFormat timeFormat = DateFormat.getTimeInstance();
+        if (FitLog.isLoggable(Log.INFO)) {
+            Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
+        }
         Format formatter = new SimpleDateFormat("EEE");
 
         WritableMap stepMap = Arguments.createMap();
 
 
         for (DataPoint dp : dataSet.getDataPoints()) {
-            Log.i(TAG, "Data point:");
-            Log.i(TAG, "\tType: " + dp.getDataType().getName());
-            Log.i(TAG, "\tStart: " + dateFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)) + " " + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "\tEnd: " + dateFormat.format(dp.getEndTime(TimeUnit.MILLISECONDS)) + " " + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
+            boolean logPoint = FitLog.point(TAG, Log.INFO);
+            if (logPoint) {
+                Log.i(TAG, "Data point:");
+                Log.i(TAG, "\tType: " + dp.getDataType().getName());
+                Log.i(TAG, "\tStart: " + FitLog.time(dp.getStartTime(TimeUnit.MILLISECONDS)));
+                Log.i(TAG, "\tEnd: " + FitLog.time(dp.getEndTime(TimeUnit.MILLISECONDS)));
+            }
 
             String day = formatter.format(new Date(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "Day: " + day);
 
             for(Field field : dp.getDataType().getFields()) {
-                Log.i("History", "\tField: " + field.getName() +
-                        " Value: " + dp.getValue(field));
+                if (logPoint) {
+                    Log.i(TAG, "\tField: " + field.getName() + " Value: " + dp.getValue(field));
+                }
 
                 stepMap.putString("day", day);
                 stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Level gate for the logging of the data readers.
+ *
+ * Callers check {@link #isLoggable} or {@link #point} before building a message, so nothing is concatenated
+ * or formatted when the line would be dropped anyway. Per data point logging goes through {@link #point}:
+ * <ul>
+ *     <li>{@code all} logs every point that passes the level,</li>
+ *     <li>{@code sampled} logs every n-th point only,</li>
+ *     <li>{@code counters} logs nothing and only counts the points per tag, see {@link #getCounters}.</li>
+ * </ul>
+ * The default is level {@code warn} in mode {@code all}, i.e. no per point lines.
+ */
+final class FitLog {
+
+    static final String MODE_ALL = "all";
+    static final String MODE_SAMPLED = "sampled";
+    static final String MODE_COUNTERS = "counters";
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final int DEFAULT_SAMPLE_RATE = 100;
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private static volatile int level = Log.WARN;
+    private static volatile String mode = MODE_ALL;
+    private static volatile int sampleRate = DEFAULT_SAMPLE_RATE;
+
+    private static final AtomicLong sampled = new AtomicLong();
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<DateFormat> timeFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+            format.setTimeZone(TimeZone.getDefault());
+            return format;
+        }
+    };
+
+    private FitLog() {
+    }
+
+    /**
+     * Unknown names are logged and ignored, a typo in {@code configure} must not crash the app.
+     */
+    static void setLevel(@Nullable String name) {
+        switch (name == null ? "" : name.toLowerCase(Locale.US)) {
+            case "verbose": level = Log.VERBOSE; break;
+            case "debug": level = Log.DEBUG; break;
+            case "info": level = Log.INFO; break;
+            case "warn": level = Log.WARN; break;
+            case "error": level = Log.ERROR; break;
+            case "none": level = NONE; break;
+            default: Log.w(TAG, "Unknown log level, keeping the current one: " + name); break;
+        }
+    }
+
+    static void setMode(@Nullable String name) {
+        // keep the constants, the hot path compares by reference
+        switch (name == null ? "" : name.toLowerCase(Locale.US)) {
+            case MODE_ALL: mode = MODE_ALL; break;
+            case MODE_SAMPLED: mode = MODE_SAMPLED; break;
+            case MODE_COUNTERS: mode = MODE_COUNTERS; break;
+            default: Log.w(TAG, "Unknown log mode, keeping the current one: " + name); break;
+        }
+    }
+
+    static void setSampleRate(int rate) {
+        sampleRate = Math.max(1, rate);
+    }
+
+    /**
+     * Whether a one-off message of the given priority is logged. Nothing is logged in {@code counters} mode.
+     */
+    static boolean isLoggable(int priority) {
+        return priority >= level && mode != MODE_COUNTERS;
+    }
+
+    /**
+     * Called once per data point. Returns true when the point should be logged with the given priority.
+     */
+    static boolean point(String tag, int priority) {
+        String current = mode;
+        if (current == MODE_COUNTERS) {
+            count(tag);
+            return false;
+        }
+        if (priority < level) {
+            return false;
+        }
+        return current != MODE_SAMPLED || sampled.incrementAndGet() % sampleRate == 0;
+    }
+
+    /**
+     * Formats a timestamp for a log line. Only call this once the line is known to be logged.
+     */
+    static String time(long millis) {
+        return timeFormat.get().format(millis);
+    }
+
+    /**
+     * Data points seen per tag while in {@code counters} mode.
+     */
+    static WritableMap getCounters() {
+        WritableMap result = Arguments.createMap();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            result.putDouble(counter.getKey(), counter.getValue().get());
+        }
+        return result;
+    }
+
+    static void resetCounters() {
+        counters.clear();
+    }
+
+    private static void count(String tag) {
+        AtomicLong counter = counters.get(tag);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(tag, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Named sections in system traces (Perfetto / systrace), off unless enabled through {@code configure}.
+ *
+ * The readers mark their stages as {@code RNGoogleFit:<reader>:<stage>}: {@code request} (building the read
+ * request), {@code process} (the data point loop, which also fills the result maps) and {@code build} (turning
+ * the items into the returned format). Fit waits are marked by {@link ReadCoalescer} as
+ * {@code RNGoogleFit:fit:<read>}, as a plain section for blocking reads and as an async section with a cookie
+ * for Task based reads, which start and finish on different threads. While tracing is off every call is a single
+ * volatile read.
+ */
+final class FitTrace {
+
+    private static final String PREFIX = "RNGoogleFit:";
+    // Trace truncates longer names
+    private static final int MAX_NAME_LENGTH = 127;
+
+    private static volatile boolean enabled = false;
+    // set once tracing was on, from then on the pools check for sections left open by a failed read
+    private static volatile boolean used = false;
+
+    private static final AtomicInteger cookies = new AtomicInteger();
+    private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private FitTrace() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        boolean supported = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+        FitTrace.used |= supported;
+        FitTrace.enabled = supported;
+    }
+
+    /**
+     * Whether sections are recorded. Check it before building a dynamic section name.
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Opens the section {@code RNGoogleFit:<name>} on this thread. Returns whether it was opened, pass that to
+     * {@link #end}.
+     */
+    static boolean begin(String name) {
+        if (!enabled) {
+            return false;
+        }
+        Trace.beginSection(name(name));
+        depth.get()[0]++;
+        return true;
+    }
+
+    static void end(boolean begun) {
+        if (!begun) {
+            return;
+        }
+        int[] open = depth.get();
+        // endAll() may have closed it already
+        if (open[0] > 0) {
+            open[0]--;
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Closes the sections a task left open on this thread, e.g. because it threw. Called by the
+     * {@link QueryExecutor} pools after every task.
+     */
+    static void endAll() {
+        if (!used) {
+            return;
+        }
+        int[] open = depth.get();
+        while (open[0] > 0) {
+            open[0]--;
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Starts an async section that may end on another thread. Returns its cookie, 0 if none was started.
+     */
+    static int beginAsync(String name) {
+        if (!enabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return 0;
+        }
+        int cookie = cookies.incrementAndGet();
+        if (cookie == 0) {
+            cookie = cookies.incrementAndGet();
+        }
+        Trace.beginAsyncSection(name(name), cookie);
+        return cookie;
+    }
+
+    static void endAsync(String name, int cookie) {
+        if (cookie != 0) {
+            Trace.endAsyncSection(name(name), cookie);
+        }
+    }
+
+    private static String name(String name) {
+        String full = PREFIX + name;
+        return full.length() > MAX_NAME_LENGTH ? full.substring(0, MAX_NAME_LENGTH) : full;
+    }
+}
@@ -36,6 +36,8 @@ import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Scope;
 import com.google.android.gms.common.api.Status;
 import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.HealthDataTypes;
 import com.google.android.gms.auth.api.signin.*;
 import com.google.android.gms.tasks.Task;
 
@@ -61,16 +63,24 @@ public class GoogleFitManager implements ActivityEventListener {
     private ActivityHistory activityHistory;
     private HydrationHistory hydrationHistory;
     private SleepHistory sleepHistory;
+    private final ReadCoalescer readCoalescer;
+    private final WriteOutbox writeOutbox;
+    private final QueryExecutor queryExecutor;
+    private final TodaySteps todaySteps;
 
     private static final String TAG = "RNGoogleFit";
 //    reserve to replace deprecated Api in the future
     private GoogleSignInClient mSignInClient;
 
-    public GoogleFitManager(ReactContext reactContext, Activity activity) {
+    public GoogleFitManager(ReactContext reactContext, Activity activity, QueryExecutor queryExecutor,
+                            TodaySteps todaySteps) {
 
         //Log.i(TAG, "Initializing GoogleFitManager" + mAuthInProgress);
         this.mReactContext = reactContext;
         this.mActivity = activity;
+        this.queryExecutor = queryExecutor;
+        this.todaySteps = todaySteps;
+        this.readCoalescer = new ReadCoalescer(queryExecutor.callbacks());
 
         mReactContext.addActivityEventListener(this);
 
@@ -85,6 +95,16 @@ public class GoogleFitManager implements ActivityEventListener {
         this.activityHistory = new ActivityHistory(mReactContext, this);
         this.hydrationHistory = new HydrationHistory(mReactContext, this);
         this.sleepHistory = new SleepHistory(mReactContext, this);
+
+        this.writeOutbox = new WriteOutbox(mReactContext, this);
+        writeOutbox.register(WriteOutbox.KIND_WEIGHT, getBodyHistory(DataType.TYPE_WEIGHT)::createDataForRequest);
+        writeOutbox.register(WriteOutbox.KIND_HEIGHT, getBodyHistory(DataType.TYPE_HEIGHT)::createDataForRequest);
+        writeOutbox.register(WriteOutbox.KIND_BLOOD_GLUCOSE,
+                getHealthHistory(HealthDataTypes.TYPE_BLOOD_GLUCOSE)::createDataForRequest);
+        writeOutbox.register(WriteOutbox.KIND_BLOOD_PRESSURE,
+                getHealthHistory(HealthDataTypes.TYPE_BLOOD_PRESSURE)::createDataForBloodPressRequest);
+        writeOutbox.register(WriteOutbox.KIND_FOOD, calorieHistory::createDataForRequest);
+        writeOutbox.register(WriteOutbox.KIND_HYDRATION, hydrationHistory::createDataForRequest);
         //        this.stepSensor = new StepSensor(mReactContext, activity);
     }
 
@@ -92,6 +112,22 @@ public class GoogleFitManager implements ActivityEventListener {
         return mApiClient;
     }
 
+    QueryExecutor getQueryExecutor() {
+        return queryExecutor;
+    }
+
+    public ReadCoalescer getReadCoalescer() {
+        return readCoalescer;
+    }
+
+    WriteOutbox getWriteOutbox() {
+        return writeOutbox;
+    }
+
+    TodaySteps getTodaySteps() {
+        return todaySteps;
+    }
+
     public RecordingApi getRecordingApi() {
         return recordingApi;
     }
@@ -108,10 +144,22 @@ public class GoogleFitManager implements ActivityEventListener {
         return bodyHistory;
     }
 
+    /**
+     * Readers run concurrently, so calls that need a specific data type get their own instance
+     * instead of switching the shared one with setDataType().
+     */
+    public BodyHistory getBodyHistory(DataType dataType) {
+        return new BodyHistory(mReactContext, this, dataType);
+    }
+
     public HealthHistory getHealthHistory() {
         return healthHistory;
     }
 
+    public HealthHistory getHealthHistory(DataType dataType) {
+        return new HealthHistory(mReactContext, this, dataType);
+    }
+
     public DistanceHistory getDistanceHistory() {
         return distanceHistory;
     }
@@ -163,8 +211,12 @@ public class GoogleFitManager implements ActivityEventListener {
                         new GoogleApiClient.ConnectionCallbacks() {
                             @Override
                             public void onConnected(@Nullable Bundle bundle) {
+                                long start = MainThreadMonitor.begin();
                                 Log.i(TAG, "Authorization - Connected");
                                 sendEvent(mReactContext, "GoogleFitAuthorizeSuccess", null);
+                                // saves queued while disconnected or before the process was restarted
+                                writeOutbox.schedule(0);
+                                MainThreadMonitor.end("authorization", start);
                             }
 
                             @Override
@@ -218,6 +270,10 @@ public class GoogleFitManager implements ActivityEventListener {
         String tempScope = "www.googleapis.com/auth/fitness.activity.read";
         GoogleSignInAccount gsa = GoogleSignIn.getAccountForScopes(mReactContext, new Scope(tempScope));
         Fitness.getConfigClient(mReactContext, gsa).disableFit();
+        // queued saves and cached aggregates belong to this account, the next one must not get them
+        writeOutbox.clear();
+        queryExecutor.execute(() -> AggregateCache.getInstance(mReactContext).clear());
+        todaySteps.reset();
         mApiClient.disconnect();
 
         googleSignInClient.signOut();
@@ -237,6 +293,7 @@ public class GoogleFitManager implements ActivityEventListener {
                     @Override
                     public void onResult(Status status) {
                         if (status.isSuccess()) {
+                            mStepCounter.unregistered();
                             mApiClient.disconnect();
                         }
                     }
@@ -280,6 +337,7 @@ public class GoogleFitManager implements ActivityEventListener {
 
     @Override
     public void onActivityResult(Activity activity, int requestCode, int resultCode, Intent data) {
+        long start = MainThreadMonitor.begin();
         if (requestCode == REQUEST_OAUTH) {
             mAuthInProgress = false;
             if (resultCode == Activity.RESULT_OK) {
@@ -294,6 +352,7 @@ public class GoogleFitManager implements ActivityEventListener {
                 sendEvent(mReactContext, "GoogleFitAuthorizeFailure", map);
             }
         }
+        MainThreadMonitor.end("authorization", start);
     }
 
     @Override
@@ -30,6 +30,7 @@ import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.LifecycleEventListener;
 import com.facebook.react.uimanager.IllegalViewOperationException;
+import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.HealthDataTypes;
 import com.facebook.react.bridge.WritableMap;
@@ -41,6 +42,9 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     private ReactContext mReactContext;
     private GoogleFitManager mGoogleFitManager = null;
     private String GOOGLE_FIT_APP_URI = "com.google.android.apps.fitness";
+    private final QueryExecutor mQueryExecutor = new QueryExecutor();
+    private StepSensor mStepSensor = null;
+    private final TodaySteps mTodaySteps = new TodaySteps();
 
     public GoogleFitModule(ReactApplicationContext reactContext) {
         super(reactContext);
@@ -76,12 +80,106 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
         // todo disconnect from Google Fit
     }
 
+    @Override
+    public void onCatalystInstanceDestroy() {
+        super.onCatalystInstanceDestroy();
+        mQueryExecutor.shutdown();
+        PerfStats.setReportInterval(mReactContext, 0);
+        if (mStepSensor != null) {
+            mStepSensor.stop();
+        }
+        if (mGoogleFitManager != null) {
+            // queued saves stay on disk and are flushed after the next connect
+            mGoogleFitManager.getWriteOutbox().shutdown();
+        }
+    }
+
+    @ReactMethod
+    public void configure(ReadableMap options) {
+        PerfStats.count("configure");
+        if (options.hasKey("queryPoolSize")) {
+            mQueryExecutor.setPoolSize(options.getInt("queryPoolSize"));
+        }
+        if (options.hasKey("aggregateCache")) {
+            AggregateCache.getInstance(mReactContext).setEnabled(options.getBoolean("aggregateCache"));
+        }
+        if (options.hasKey("logLevel")) {
+            FitLog.setLevel(options.getString("logLevel"));
+        }
+        if (options.hasKey("logMode")) {
+            FitLog.setMode(options.getString("logMode"));
+        }
+        if (options.hasKey("logSampleRate")) {
+            FitLog.setSampleRate(options.getInt("logSampleRate"));
+        }
+        if (options.hasKey("performanceStats")) {
+            PerfStats.setEnabled(options.getBoolean("performanceStats"));
+        }
+        if (options.hasKey("performanceStatsInterval")) {
+            PerfStats.setReportInterval(mReactContext, (long) options.getDouble("performanceStatsInterval"));
+        }
+        if (options.hasKey("trace")) {
+            FitTrace.setEnabled(options.getBoolean("trace"));
+        }
+    }
+
+    @ReactMethod
+    public void getLogCounters(boolean reset, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getLogCounters", jsPromise);
+        WritableMap counters = FitLog.getCounters();
+        if (reset) {
+            FitLog.resetCounters();
+        }
+        promise.resolve(counters);
+    }
+
+    @ReactMethod
+    public void getMainThreadStats(boolean reset, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getMainThreadStats", jsPromise);
+        WritableMap stats = MainThreadMonitor.getStats();
+        if (reset) {
+            MainThreadMonitor.reset();
+        }
+        promise.resolve(stats);
+    }
+
+    @ReactMethod
+    public void getPerformanceStats(boolean reset, Promise promise) {
+        WritableMap stats = PerfStats.getStats();
+        if (reset) {
+            PerfStats.reset();
+        }
+        promise.resolve(stats);
+    }
+
+    @ReactMethod
+    public void flushOutbox(Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("flushOutbox", jsPromise);
+        mGoogleFitManager.getWriteOutbox().flush(promise);
+    }
+
+    @ReactMethod
+    public void cancel(String requestId, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("cancel", jsPromise);
+        promise.resolve(mQueryExecutor.cancel(requestId));
+    }
+
+    @ReactMethod
+    public void clearCache(Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("clearCache", jsPromise);
+        mQueryExecutor.submit(promise, () -> {
+            AggregateCache.getInstance(mReactContext).clear();
+            return true;
+        });
+    }
+
     @ReactMethod
     public void authorize(ReadableMap options) {
+        PerfStats.count("authorize");
         final Activity activity = getCurrentActivity();
 
         if (mGoogleFitManager == null) {
-            mGoogleFitManager = new GoogleFitManager(mReactContext, activity);
+            mGoogleFitManager = new GoogleFitManager(mReactContext, activity, mQueryExecutor, mTodaySteps);
         }
 
         if (mGoogleFitManager.isAuthorized()) {
@@ -99,7 +197,8 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void isAuthorized (final Promise promise) {
+    public void isAuthorized (Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("isAuthorized", jsPromise);
         boolean isAuthorized = false;
         if (mGoogleFitManager != null && mGoogleFitManager.isAuthorized() ) {
             isAuthorized = true;
@@ -110,7 +209,8 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void disconnect(Promise promise) {
+    public void disconnect(Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("disconnect", jsPromise);
         try {
             if (mGoogleFitManager != null) {
                 mGoogleFitManager.disconnect(getCurrentActivity());
@@ -123,12 +223,87 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
 
     @ReactMethod
     public void startFitnessRecording(ReadableArray dataTypes) {
+        PerfStats.count("startFitnessRecording");
         mGoogleFitManager.getRecordingApi().subscribe(dataTypes);
     }
 
+    /**
+     * options: {samplingRate?, emitInterval?} in milliseconds.
+     */
+    @ReactMethod
+    public void observeSteps(ReadableMap options) {
+        PerfStats.count("observeSteps");
+        long samplingRate = options.hasKey("samplingRate")
+                ? (long) options.getDouble("samplingRate") : StepCounter.DEFAULT_SAMPLING_RATE_MILLIS;
+        long emitInterval = options.hasKey("emitInterval")
+                ? (long) options.getDouble("emitInterval") : StepCounter.DEFAULT_EMIT_INTERVAL_MILLIS;
+        mGoogleFitManager.getStepCounter().findFitnessDataSources(samplingRate, emitInterval);
+    }
+
+    @ReactMethod
+    public void getLiveStepTotal(Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getLiveStepTotal", jsPromise);
+        try {
+            promise.resolve(mGoogleFitManager.getStepCounter().getLiveStepTotal());
+        } catch (Exception e) {
+            promise.reject(e);
+        }
+    }
+
+    /**
+     * Live steps from the hardware step counter, works without authorization.
+     * options: {emitInterval?, maxReportLatency?} in milliseconds.
+     */
+    @ReactMethod
+    public void startLiveSteps(ReadableMap options, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("startLiveSteps", jsPromise);
+        try {
+            long emitInterval = options.hasKey("emitInterval")
+                    ? (long) options.getDouble("emitInterval") : StepSensor.DEFAULT_EMIT_INTERVAL_MILLIS;
+            long maxReportLatency = options.hasKey("maxReportLatency")
+                    ? (long) options.getDouble("maxReportLatency") : emitInterval;
+            if (mStepSensor == null) {
+                mStepSensor = new StepSensor(mReactContext, mTodaySteps);
+            }
+            promise.resolve(mStepSensor.start(emitInterval, maxReportLatency));
+        } catch (Exception e) {
+            promise.reject(e);
+        }
+    }
+
+    @ReactMethod
+    public void stopLiveSteps() {
+        PerfStats.count("stopLiveSteps");
+        if (mStepSensor != null) {
+            mStepSensor.stop();
+        }
+    }
+
+    /**
+     * Today's steps from memory, the last daily total synced from Fit plus the live steps since then.
+     * A stale total is reconciled with Fit in the background, the answer never waits for it.
+     */
+    @ReactMethod
+    public void getTodaySteps(Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getTodaySteps", jsPromise);
+        GoogleApiClient client = mGoogleFitManager != null ? mGoogleFitManager.getGoogleApiClient() : null;
+        promise.resolve(mTodaySteps.get(client, mQueryExecutor::execute));
+    }
+
+    /**
+     * Steps of the hardware step counter recorded today, read from the local step store.
+     */
+    @ReactMethod
+    public void getSensorStepsToday(Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getSensorStepsToday", jsPromise);
+        mQueryExecutor.submit(promise, () -> (double) StepStore.getInstance(mReactContext).getStepsToday());
+    }
+
     @ReactMethod
-    public void observeSteps() {
-        mGoogleFitManager.getStepCounter().findFitnessDataSources();
+    public void getSensorStepSamples(double startDate, double endDate, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getSensorStepSamples", jsPromise);
+        mQueryExecutor.submit(promise,
+                () -> StepStore.getInstance(mReactContext).getSamples((long) startDate, (long) endDate));
     }
 
     @ReactMethod
@@ -136,17 +311,27 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                          double endDate,
                                          int bucketInterval,
                                          String bucketUnit,
-                                         Promise promise
+                                         ReadableMap options,
+                                         Promise jsPromise
     ) {
-        try {
-            mGoogleFitManager.getStepHistory().aggregateDataByDate((long) startDate, (long) endDate,
-                    bucketInterval,
-                    bucketUnit,
-                    promise
-            );
-        } catch (Error e) {
-            promise.reject(e);
-        }
+        final Promise promise = PerfStats.wrap("getDailyStepCountSamples", jsPromise);
+        final StepHistory stepHistory = mGoogleFitManager.getStepHistory();
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.register(query, promise);
+        // the cache lookup and the cached sources run on the pool, only the reads of the gaps are Tasks
+        mQueryExecutor.execute(() -> {
+            try {
+                stepHistory.aggregateDataByDate((long) startDate, (long) endDate,
+                        bucketInterval,
+                        bucketUnit,
+                        query,
+                        promise
+                );
+            } catch (RuntimeException | Error e) {
+                mQueryExecutor.finish(query);
+                query.reject(promise, e);
+            }
+        });
     }
 
     @ReactMethod
@@ -154,13 +339,14 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                    double endDate,
                                    int bucketInterval,
                                    String bucketUnit,
-                                   Promise promise)
+                                   ReadableMap options,
+                                   Promise jsPromise)
     {
-        try {
-            promise.resolve(mGoogleFitManager.getActivityHistory().getActivitySamples((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+        final Promise promise = PerfStats.wrap("getActivitySamples", jsPromise);
+        final ActivityHistory activityHistory = mGoogleFitManager.getActivityHistory();
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                activityHistory.getActivitySamples((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
@@ -168,25 +354,148 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                double endDate,
                                int bucketInterval,
                                String bucketUnit,
-                               Promise promise)
+                               ReadableMap options,
+                               Promise jsPromise)
     {
-        try {
-            promise.resolve(mGoogleFitManager.getActivityHistory().getMoveMinutes((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (Exception e) {
-            promise.reject(e);
+        final Promise promise = PerfStats.wrap("getMoveMinutes", jsPromise);
+        final ActivityHistory activityHistory = mGoogleFitManager.getActivityHistory();
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                activityHistory.getMoveMinutes((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
+    }
+
+    @ReactMethod
+    public void getSummary(ReadableArray types,
+                           double startDate,
+                           double endDate,
+                           int bucketInterval,
+                           String bucketUnit,
+                           ReadableMap options,
+                           Promise jsPromise)
+    {
+        final Promise promise = PerfStats.wrap("getSummary", jsPromise);
+        final ActivityHistory activityHistory = mGoogleFitManager.getActivityHistory();
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                activityHistory.getSummary(types, (long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
+    }
+
+    /**
+     * Runs several reads with one bridge call. Each query is a map of {@code id}, {@code type}, the arguments of
+     * the single read method of that type and its per-call {@code options}, see {@link BatchQuery}.
+     */
+    @ReactMethod
+    public void batch(ReadableArray queries, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("batch", jsPromise);
+        BatchQuery batch = new BatchQuery(queries.size(), promise);
+        for (int i = 0; i < queries.size(); i++) {
+            // every query has to settle, one without a usable id is keyed by its index
+            String id = String.valueOf(i);
+            try {
+                ReadableMap query = queries.getMap(i);
+                String queryId = QueryContext.idOf(query, "id");
+                if (queryId != null) {
+                    id = queryId;
+                }
+                runBatchQuery(query, batch.promise(id));
+            } catch (Exception e) {
+                batch.reject(id, "E_BATCH_QUERY", e.getMessage());
+            }
+        }
+    }
+
+    private void runBatchQuery(ReadableMap query, Promise promise) {
+        String type = query.getString("type");
+        double startDate = query.getDouble("startDate");
+        double endDate = query.getDouble("endDate");
+        int bucketInterval = query.hasKey("bucketInterval") ? query.getInt("bucketInterval") : 1;
+        String bucketUnit = query.hasKey("bucketUnit") ? query.getString("bucketUnit") : "DAY";
+        ReadableMap options = query.hasKey("options") ? query.getMap("options") : null;
+
+        switch (type) {
+            case "steps":
+                getDailyStepCountSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "activity":
+                getActivitySamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "moveMinutes":
+                getMoveMinutes(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "summary":
+                getSummary(query.getArray("types"), startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "distance":
+                getDailyDistanceSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "weight":
+                getWeightSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "height":
+                getHeightSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "calories":
+                boolean basalCalculation = !query.hasKey("basalCalculation") || query.getBoolean("basalCalculation");
+                getDailyCalorieSamples(startDate, endDate, basalCalculation, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "nutrition":
+                getDailyNutritionSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "heartRate":
+                getHeartRateSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "aggregatedHeartRate":
+                getAggregatedHeartRateSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "restingHeartRate":
+                getRestingHeartRateSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "bloodPressure":
+                getBloodPressureSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "bloodGlucose":
+                getBloodGlucoseSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "bodyTemperature":
+                getBodyTemperatureSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "oxygenSaturation":
+                getOxygenSaturationSamples(startDate, endDate, bucketInterval, bucketUnit, options, promise);
+                break;
+            case "hydration":
+                getHydrationSamples(startDate, endDate, options, promise);
+                break;
+            case "sleep":
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+                    promise.reject("E_BATCH_QUERY", "Sleep samples require Android N or above");
+                    break;
+                }
+                getSleepSamples(startDate, endDate, options, promise);
+                break;
+            case "workout":
+                getWorkoutSession(startDate, endDate, options != null ? options : Arguments.createMap(), promise);
+                break;
+            default:
+                promise.reject("E_BATCH_QUERY", "Unknown query type: " + type);
         }
     }
 
     @ReactMethod
     public void getUserInputSteps(double startDate,
                                 double endDate,
-                                Callback errorCallback,
-                                Callback successCallback) {
-        try {
-            mGoogleFitManager.getStepHistory().getUserInputSteps((long) startDate, (long) endDate, successCallback);
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
-        }
+                                Callback jsErrorCallback,
+                                Callback jsSuccessCallback) {
+        Callback[] callbacks = PerfStats.wrap("getUserInputSteps", jsErrorCallback, jsSuccessCallback);
+        final Callback errorCallback = callbacks[0];
+        final Callback successCallback = callbacks[1];
+        final StepHistory stepHistory = mGoogleFitManager.getStepHistory();
+        mQueryExecutor.execute(() -> {
+            try {
+                stepHistory.getUserInputSteps((long) startDate, (long) endDate, successCallback);
+            } catch (Exception e) {
+                errorCallback.invoke(e.getMessage());
+            }
+        });
     }
 
     @ReactMethod
@@ -194,12 +503,13 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                         double endDate,
                                         int bucketInterval,
                                         String bucketUnit,
-                                        Promise promise) {
-        try {
-            promise.resolve(mGoogleFitManager.getDistanceHistory().aggregateDataByDate((long) startDate, (long) endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+                                        ReadableMap options,
+                                        Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getDailyDistanceSamples", jsPromise);
+        final DistanceHistory distanceHistory = mGoogleFitManager.getDistanceHistory();
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                distanceHistory.aggregateDataByDate((long) startDate, (long) endDate, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
@@ -207,14 +517,13 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                  double endDate,
                                  int bucketInterval,
                                  String bucketUnit,
-                                 Promise promise) {
-        try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_WEIGHT);
-            promise.resolve(bodyHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+                                 ReadableMap options,
+                                 Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getWeightSamples", jsPromise);
+        final BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory(DataType.TYPE_WEIGHT);
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                bodyHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
@@ -222,25 +531,26 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                  double endDate,
                                  int bucketInterval,
                                  String bucketUnit,
-                                 Promise promise) {
-        try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_HEIGHT);
-            promise.resolve(bodyHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+                                 ReadableMap options,
+                                 Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getHeightSamples", jsPromise);
+        final BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory(DataType.TYPE_HEIGHT);
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                bodyHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
     public void saveHeight(ReadableMap heightSample,
-                           Callback errorCallback,
-                           Callback successCallback) {
+                           Callback jsErrorCallback,
+                           Callback jsSuccessCallback) {
+        Callback[] callbacks = PerfStats.wrap("saveHeight", jsErrorCallback, jsSuccessCallback);
+        final Callback errorCallback = callbacks[0];
+        final Callback successCallback = callbacks[1];
 
         try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_HEIGHT);
-            successCallback.invoke(bodyHistory.save(heightSample));
+            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory(DataType.TYPE_HEIGHT);
+            successCallback.invoke(saveResult(bodyHistory.save(heightSample)));
         } catch (IllegalViewOperationException e) {
             errorCallback.invoke(e.getMessage());
         }
@@ -253,21 +563,25 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                        boolean basalCalculation,
                                        int bucketInterval,
                                        String bucketUnit,
-                                       Promise promise) {
+                                       ReadableMap options,
+                                       Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getDailyCalorieSamples", jsPromise);
 
-        try {
-            promise.resolve(mGoogleFitManager.getCalorieHistory().aggregateDataByDate((long) startDate, (long) endDate, basalCalculation, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+        final CalorieHistory calorieHistory = mGoogleFitManager.getCalorieHistory();
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                calorieHistory.aggregateDataByDate((long) startDate, (long) endDate, basalCalculation, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
     public void saveFood(ReadableMap foodSample,
-                         Callback errorCallback,
-                         Callback successCallback) {
+                         Callback jsErrorCallback,
+                         Callback jsSuccessCallback) {
+        Callback[] callbacks = PerfStats.wrap("saveFood", jsErrorCallback, jsSuccessCallback);
+        final Callback errorCallback = callbacks[0];
+        final Callback successCallback = callbacks[1];
         try {
-            successCallback.invoke(mGoogleFitManager.getCalorieHistory().saveFood(foodSample));
+            successCallback.invoke(saveResult(mGoogleFitManager.getCalorieHistory().saveFood(foodSample)));
         } catch (IllegalViewOperationException e) {
             errorCallback.invoke(e.getMessage());
         }
@@ -278,32 +592,67 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                          double endDate,
                                          int bucketInterval,
                                          String bucketUnit,
-                                         Promise promise) {
-        try {
-            promise.resolve(mGoogleFitManager.getNutritionHistory().aggregateDataByDate((long) startDate, (long) endDate, bucketInterval, bucketUnit));
+                                         ReadableMap options,
+                                         Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getDailyNutritionSamples", jsPromise);
+        final NutritionHistory nutritionHistory = mGoogleFitManager.getNutritionHistory();
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                nutritionHistory.aggregateDataByDate((long) startDate, (long) endDate, bucketInterval, bucketUnit, query));
+    }
+
+    @ReactMethod
+    public void saveWeight(ReadableMap weightSample,
+                           Callback jsErrorCallback,
+                           Callback jsSuccessCallback) {
+        Callback[] callbacks = PerfStats.wrap("saveWeight", jsErrorCallback, jsSuccessCallback);
+        final Callback errorCallback = callbacks[0];
+        final Callback successCallback = callbacks[1];
+        try {
+            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory(DataType.TYPE_WEIGHT);
+            successCallback.invoke(saveResult(bodyHistory.save(weightSample)));
         } catch (IllegalViewOperationException e) {
+            errorCallback.invoke(e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void saveWeights(ReadableArray weightSamples, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("saveWeights", jsPromise);
+        try {
+            promise.resolve(saveResult(mGoogleFitManager.getBodyHistory(DataType.TYPE_WEIGHT).saveAll(weightSamples)));
+        } catch (Error e) {
             promise.reject(e);
         }
     }
 
     @ReactMethod
-    public void saveWeight(ReadableMap weightSample,
-                           Callback errorCallback,
-                           Callback successCallback) {
+    public void saveHeights(ReadableArray heightSamples, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("saveHeights", jsPromise);
         try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_WEIGHT);
-            successCallback.invoke(bodyHistory.save(weightSample));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
+            promise.resolve(saveResult(mGoogleFitManager.getBodyHistory(DataType.TYPE_HEIGHT).saveAll(heightSamples)));
+        } catch (Error e) {
+            promise.reject(e);
+        }
+    }
+
+    @ReactMethod
+    public void saveFoods(ReadableArray foodSamples, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("saveFoods", jsPromise);
+        try {
+            promise.resolve(saveResult(mGoogleFitManager.getCalorieHistory().saveFood(foodSamples)));
+        } catch (Error e) {
+            promise.reject(e);
         }
     }
 
     @ReactMethod
-    public void deleteWeight(ReadableMap options, Callback errorCallback, Callback successCallback) {
+    public void deleteWeight(ReadableMap options, Callback jsErrorCallback, Callback jsSuccessCallback) {
+        Callback[] callbacks = PerfStats.wrap("deleteWeight", jsErrorCallback, jsSuccessCallback);
+        final Callback errorCallback = callbacks[0];
+        final Callback successCallback = callbacks[1];
         try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_WEIGHT);
+            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory(DataType.TYPE_WEIGHT);
             successCallback.invoke(bodyHistory.delete(options));
         } catch (IllegalViewOperationException e) {
             errorCallback.invoke(e.getMessage());
@@ -311,10 +660,12 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void deleteHeight(ReadableMap options, Callback errorCallback, Callback successCallback) {
+    public void deleteHeight(ReadableMap options, Callback jsErrorCallback, Callback jsSuccessCallback) {
+        Callback[] callbacks = PerfStats.wrap("deleteHeight", jsErrorCallback, jsSuccessCallback);
+        final Callback errorCallback = callbacks[0];
+        final Callback successCallback = callbacks[1];
         try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_HEIGHT);
+            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory(DataType.TYPE_HEIGHT);
             successCallback.invoke(bodyHistory.delete(options));
         } catch (IllegalViewOperationException e) {
             errorCallback.invoke(e.getMessage());
@@ -322,7 +673,10 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void isAvailable(Callback errorCallback, Callback successCallback) { // true if GoogleFit installed
+    public void isAvailable(Callback jsErrorCallback, Callback jsSuccessCallback) { // true if GoogleFit installed
+        Callback[] callbacks = PerfStats.wrap("isAvailable", jsErrorCallback, jsSuccessCallback);
+        final Callback errorCallback = callbacks[0];
+        final Callback successCallback = callbacks[1];
         try {
             successCallback.invoke(isAvailableCheck());
         } catch (IllegalViewOperationException e) {
@@ -331,7 +685,10 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void isEnabled(Callback errorCallback, Callback successCallback) { // true if permission granted
+    public void isEnabled(Callback jsErrorCallback, Callback jsSuccessCallback) { // true if permission granted
+        Callback[] callbacks = PerfStats.wrap("isEnabled", jsErrorCallback, jsSuccessCallback);
+        final Callback errorCallback = callbacks[0];
+        final Callback successCallback = callbacks[1];
         try {
             successCallback.invoke(isEnabledCheck());
         } catch (IllegalViewOperationException e) {
@@ -341,6 +698,7 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
 
     @ReactMethod
     public void openFit() {
+        PerfStats.count("openFit");
         PackageManager pm = mReactContext.getPackageManager();
         try {
             Intent launchIntent = pm.getLaunchIntentForPackage(GOOGLE_FIT_APP_URI);
@@ -363,24 +721,34 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
 
     private boolean isEnabledCheck() {
         if (mGoogleFitManager == null) {
-            mGoogleFitManager = new GoogleFitManager(mReactContext, getCurrentActivity());
+            mGoogleFitManager = new GoogleFitManager(mReactContext, getCurrentActivity(), mQueryExecutor, mTodaySteps);
         }
         return mGoogleFitManager.isAuthorized();
     }
 
+    /**
+     * What the save methods resolve with: the save id reported by the outbox events, true if there was nothing
+     * to save and false if the samples could not be queued.
+     */
+    private static Object saveResult(long saveId) {
+        if (saveId == WriteOutbox.NOT_QUEUED) {
+            return false;
+        }
+        return saveId == WriteOutbox.NOTHING_QUEUED ? (Object) true : (Object) (double) saveId;
+    }
+
     @ReactMethod
     public void getBloodPressureSamples(double startDate,
                                         double endDate,
                                         int bucketInterval,
                                         String bucketUnit,
-                                        Promise promise) {
-        try {
-            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory();
-            healthHistory.setDataType(HealthDataTypes.TYPE_BLOOD_PRESSURE);
-            promise.resolve(healthHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+                                        ReadableMap options,
+                                        Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getBloodPressureSamples", jsPromise);
+        final HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(HealthDataTypes.TYPE_BLOOD_PRESSURE);
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                healthHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
@@ -388,14 +756,13 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                        double endDate,
                                        int bucketInterval,
                                        String bucketUnit,
-                                       Promise promise) {
-        try {
-            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory();
-            healthHistory.setDataType(HealthDataTypes.TYPE_BODY_TEMPERATURE);
-            promise.resolve(healthHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+                                       ReadableMap options,
+                                       Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getBodyTemperatureSamples", jsPromise);
+        final HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(HealthDataTypes.TYPE_BODY_TEMPERATURE);
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                healthHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
@@ -403,14 +770,13 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                        double endDate,
                                        int bucketInterval,
                                        String bucketUnit,
-                                       Promise promise) {
-        try {
-            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory();
-            healthHistory.setDataType(HealthDataTypes.TYPE_OXYGEN_SATURATION);
-            promise.resolve(healthHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+                                       ReadableMap options,
+                                       Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getOxygenSaturationSamples", jsPromise);
+        final HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(HealthDataTypes.TYPE_OXYGEN_SATURATION);
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                healthHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
@@ -418,33 +784,54 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                         double endDate,
                                         int bucketInterval,
                                         String bucketUnit,
-                                        Promise promise) {
+                                        ReadableMap options,
+                                        Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getBloodGlucoseSamples", jsPromise);
+        final HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(HealthDataTypes.TYPE_BLOOD_GLUCOSE);
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                healthHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
+    }
+
+    @ReactMethod
+    public void saveBloodGlucose(ReadableMap bloodGlucoseSample, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("saveBloodGlucose", jsPromise);
         try {
-            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory();
-            healthHistory.setDataType(HealthDataTypes.TYPE_BLOOD_GLUCOSE);
-            promise.resolve(healthHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
+            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(HealthDataTypes.TYPE_BLOOD_GLUCOSE);
+            promise.resolve(saveResult(healthHistory.saveBloodGlucose(bloodGlucoseSample)));
+        } catch (Error e) {
+            promise.reject(e);
+        }
+    }
+
+    @ReactMethod
+    public void saveBloodGlucoseBatch(ReadableArray bloodGlucoseSamples, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("saveBloodGlucoseBatch", jsPromise);
+        try {
+            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(HealthDataTypes.TYPE_BLOOD_GLUCOSE);
+            promise.resolve(saveResult(healthHistory.saveBloodGlucose(bloodGlucoseSamples)));
+        } catch (Error e) {
             promise.reject(e);
         }
     }
 
     @ReactMethod
-    public void saveBloodGlucose(ReadableMap bloodGlucoseSample, Promise promise) {
+    public void saveBloodPressureBatch(ReadableArray bloodPressureSamples, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("saveBloodPressureBatch", jsPromise);
         try {
-            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory();
-            healthHistory.setDataType(HealthDataTypes.TYPE_BLOOD_GLUCOSE);
-            healthHistory.saveBloodGlucose(bloodGlucoseSample);
+            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(HealthDataTypes.TYPE_BLOOD_PRESSURE);
+            promise.resolve(saveResult(healthHistory.saveBloodPressure(bloodPressureSamples)));
         } catch (Error e) {
             promise.reject(e);
         }
     }
 
     @ReactMethod
-    public void saveBloodPressure(ReadableMap bloodPressureSample, Promise promise) {
+    public void saveBloodPressure(ReadableMap bloodPressureSample, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("saveBloodPressure", jsPromise);
         try {
-            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory();
-            healthHistory.setDataType(HealthDataTypes.TYPE_BLOOD_PRESSURE);
-            healthHistory.saveBloodPressure(bloodPressureSample);
+            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(HealthDataTypes.TYPE_BLOOD_PRESSURE);
+            promise.resolve(saveResult(healthHistory.saveBloodPressure(bloodPressureSample)));
         } catch (Error e) {
             promise.reject(e);
         }
@@ -455,15 +842,14 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                     double endDate,
                                     int bucketInterval,
                                     String bucketUnit,
-                                    Promise promise) {
+                                    ReadableMap options,
+                                    Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getHeartRateSamples", jsPromise);
 
-        try {
-            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory();
-            healthHistory.setDataType(DataType.TYPE_HEART_RATE_BPM);
-            promise.resolve(healthHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+        final HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(DataType.TYPE_HEART_RATE_BPM);
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                healthHistory.getHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
@@ -471,15 +857,14 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                               double endDate,
                                               int bucketInterval,
                                               String bucketUnit,
-                                              Promise promise) {
+                                              ReadableMap options,
+                                              Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getAggregatedHeartRateSamples", jsPromise);
 
-        try {
-            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory();
-            healthHistory.setDataType(DataType.TYPE_HEART_RATE_BPM);
-            promise.resolve(healthHistory.getAggregatedHeartRateHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+        final HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(DataType.TYPE_HEART_RATE_BPM);
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                healthHistory.getAggregatedHeartRateHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
@@ -487,41 +872,47 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
                                     double endDate,
                                     int bucketInterval,
                                     String bucketUnit,
-                                    Promise promise) {
+                                    ReadableMap options,
+                                    Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getRestingHeartRateSamples", jsPromise);
 
-        try {
-            HealthHistory healthHistory = mGoogleFitManager.getHealthHistory();
-            healthHistory.setDataType(DataType.TYPE_HEART_RATE_BPM);
-            promise.resolve(healthHistory.getRestingHeartRateHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+        final HealthHistory healthHistory = mGoogleFitManager.getHealthHistory(DataType.TYPE_HEART_RATE_BPM);
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                healthHistory.getRestingHeartRateHistory((long)startDate, (long)endDate, bucketInterval, bucketUnit, query));
     }
 
     @ReactMethod
     public void getHydrationSamples(double startDate,
                                     double endDate,
-                                    Promise promise) {
-        try {
-            promise.resolve(mGoogleFitManager.getHydrationHistory().getHistory((long) startDate, (long) endDate));
-        } catch (IllegalViewOperationException e) {
-            promise.reject(e);
-        }
+                                    ReadableMap options,
+                                    Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getHydrationSamples", jsPromise);
+        final HydrationHistory hydrationHistory = mGoogleFitManager.getHydrationHistory();
+        final QueryContext query = QueryContext.from(options);
+        mQueryExecutor.submit(promise, query, () ->
+                hydrationHistory.getHistory((long) startDate, (long) endDate, query));
     }
 
     @ReactMethod
     public void saveHydration(ReadableArray hydrationArray,
-                           Callback errorCallback,
-                           Callback successCallback) {
+                           Callback jsErrorCallback,
+                           Callback jsSuccessCallback) {
+        Callback[] callbacks = PerfStats.wrap("saveHydration", jsErrorCallback, jsSuccessCallback);
+        final Callback errorCallback = callbacks[0];
+        final Callback successCallback = callbacks[1];
         try {
             HydrationHistory hydrationHistory = mGoogleFitManager.getHydrationHistory();
-            successCallback.invoke(hydrationHistory.save(hydrationArray));
+            successCallback.invoke(saveResult(hydrationHistory.save(hydrationArray)));
         } catch (IllegalViewOperationException e) {
             errorCallback.invoke(e.getMessage());
         }
     }
     @ReactMethod
-    public void deleteHydration(ReadableMap options, Callback errorCallback, Callback successCallback) {
+    public void deleteHydration(ReadableMap options, Callback jsErrorCallback, Callback jsSuccessCallback) {
+        Callback[] callbacks = PerfStats.wrap("deleteHydration", jsErrorCallback, jsSuccessCallback);
+        final Callback errorCallback = callbacks[0];
+        final Callback successCallback = callbacks[1];
         try {
             HydrationHistory hydrationHistory = mGoogleFitManager.getHydrationHistory();
             successCallback.invoke(hydrationHistory.delete(options));
@@ -532,16 +923,20 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
 
     @RequiresApi(api = Build.VERSION_CODES.N)
     @ReactMethod
-    public void getSleepSamples(double startDate, double endDate, Promise promise) {
+    public void getSleepSamples(double startDate, double endDate, ReadableMap options, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getSleepSamples", jsPromise);
         try {
-           mGoogleFitManager.getSleepHistory().getSleepData((long)startDate, (long)endDate, promise);
+           final QueryContext query = QueryContext.from(options);
+           mQueryExecutor.register(query, promise);
+           mGoogleFitManager.getSleepHistory().getSleepData((long)startDate, (long)endDate, query, promise);
         } catch (Error e) {
             promise.reject(e);
         }
     }
 
     @ReactMethod
-    public void saveSleep(ReadableMap sleepSample, Promise promise) {
+    public void saveSleep(ReadableMap sleepSample, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("saveSleep", jsPromise);
         try {
             mGoogleFitManager.getSleepHistory().saveSleep(sleepSample, promise);
         } catch (Error e) {
@@ -550,16 +945,20 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void getWorkoutSession(double startDate, double endDate, ReadableMap options, Promise promise) {
+    public void getWorkoutSession(double startDate, double endDate, ReadableMap options, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("getWorkoutSession", jsPromise);
         try{
-            mGoogleFitManager.getActivityHistory().getWorkoutSession((long)startDate, (long)endDate, options, promise);
+            final QueryContext query = QueryContext.from(options);
+            mQueryExecutor.register(query, promise);
+            mGoogleFitManager.getActivityHistory().getWorkoutSession((long)startDate, (long)endDate, options, query, promise);
         } catch (Error e) {
             promise.reject(e);
         }
     }
 
     @ReactMethod
-    public void saveWorkout(double startDate, double endDate, ReadableMap options, Promise promise) {
+    public void saveWorkout(double startDate, double endDate, ReadableMap options, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("saveWorkout", jsPromise);
         try {
             mGoogleFitManager.getActivityHistory().saveWorkout((long)startDate, (long)endDate, options, promise);
         } catch (Error e) {
@@ -568,7 +967,8 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void deleteAllWorkout(double startDate, double endDate, ReadableMap options, Promise promise) {
+    public void deleteAllWorkout(double startDate, double endDate, ReadableMap options, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("deleteAllWorkout", jsPromise);
         try {
             mGoogleFitManager.getActivityHistory().deleteAllWorkout((long)startDate, (long)endDate, options, promise);
         } catch (Error e) {
@@ -577,7 +977,8 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void deleteAllSleep(double startDate, double endDate, ReadableMap options, Promise promise) {
+    public void deleteAllSleep(double startDate, double endDate, ReadableMap options, Promise jsPromise) {
+        final Promise promise = PerfStats.wrap("deleteAllSleep", jsPromise);
         try {
             mGoogleFitManager.getActivityHistory().deleteAllSleep((long)startDate, (long)endDate, options, promise);
         } catch (Error e) {
@@ -9,7 +9,6 @@
 
 package com.reactnative.googlefit;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
@@ -31,10 +30,14 @@ import com.google.android.gms.fitness.result.DataReadResult;
 import com.google.android.gms.fitness.data.HealthDataTypes;
 import com.google.android.gms.fitness.data.HealthFields;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -51,10 +54,11 @@ public class HealthHistory {
 
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
-    private DataSet Dataset;
     private DataType dataType;
 
     private static final String TAG = "Health History";
+    private static final String CACHE_KEY_HEART_RATE_SUMMARY = "heart_rate_summary";
+    private static final String CACHE_KEY_RESTING_HEART_RATE = "resting_heart_rate:";
 
     public HealthHistory(ReactContext reactContext, GoogleFitManager googleFitManager, DataType dataType){
         this.mReactContext = reactContext;
@@ -70,141 +74,188 @@ public class HealthHistory {
         this.dataType = dataType;
     }
 
-    public ReadableArray getHistory(long startTime, long endTime, int bucketInterval, String bucketUnit) {
-        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
-                .read(this.dataType)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS);
-        if (this.dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
-            readRequestBuilder.bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit));
-        }
-
-        DataReadRequest readRequest = readRequestBuilder.build();
-
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
-
-        WritableArray map = Arguments.createArray();
-
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
+    public Object getHistory(long startTime, long endTime, int bucketInterval, String bucketUnit, QueryContext query) {
+        // multi-year reads are split into shards sized by the density of the data, see ShardedRead
+        long shardMillis = this.dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE
+                ? ShardedRead.shardMillisForBuckets(HelperUtil.processBucketUnit(bucketUnit).toMillis(bucketInterval))
+                : ShardedRead.shardMillisForPoints(expectedPointsPerHour());
+        List<DataReadResult> results = ShardedRead.read(startTime, endTime, shardMillis,
+                (shardStart, shardEnd) -> readData(shardStart, shardEnd, bucketInterval, bucketUnit, query));
+        query.throwIfCancelled();
+
+        boolean traced = FitTrace.begin("health:process");
+        List<DataSet> dataSets = new ArrayList<>();
+        for (DataReadResult dataReadResult : results) {
+            //Used for aggregated data
+            if (dataReadResult.getBuckets().size() > 0) {
+                for (Bucket bucket : dataReadResult.getBuckets()) {
+                    dataSets.addAll(bucket.getDataSets());
                 }
             }
-        }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
+            //Used for non-aggregated data
+            else if (dataReadResult.getDataSets().size() > 0) {
+                dataSets.addAll(dataReadResult.getDataSets());
             }
         }
-        return map;
-    }
 
-    /**
-     * GLE added to allow us to aggregate heart rate data.
-     * It does the same as health history, but adds the aggregation.
-     * Note there are also some changes to the processDataSet method to allow for the aggregation.
-     */
-    public ReadableArray getAggregatedHeartRateHistory(long startTime, long endTime, int bucketInterval, String bucketUnit) {
-        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS);
+        // raw reads can be large, so the columnar format is written straight from the data points
+        if (query.isColumnar()) {
+            ColumnarWriter writer = new ColumnarWriter();
+            for (DataSet dataSet : dataSets) {
+                processDataSet(dataSet, writer);
+            }
+            FitTrace.end(traced);
 
-        if (this.dataType == DataType.TYPE_HEART_RATE_BPM) {
-            readRequestBuilder
-                    .aggregate(this.dataType, DataType.AGGREGATE_HEART_RATE_SUMMARY)
-                    .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit));
-        } else {
-            readRequestBuilder.read(this.dataType);
+            traced = FitTrace.begin("health:build");
+            WritableMap columns = writer.toWritableMap();
+            FitTrace.end(traced);
+            return columns;
         }
 
-        DataReadRequest readRequest = readRequestBuilder.build();
-
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
-
         WritableArray map = Arguments.createArray();
-
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
-                }
-            }
-        }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
-            }
+        for (DataSet dataSet : dataSets) {
+            processDataSet(dataSet, map);
         }
-        return map;
+        FitTrace.end(traced);
+
+        traced = FitTrace.begin("health:build");
+        Object result = query.isDictionary() ? query.format(map.toArrayList(), valueKey()) : map;
+        FitTrace.end(traced);
+        return result;
     }
 
-    public ReadableArray getRestingHeartRateHistory(long startTime, long endTime, int bucketInterval, String bucketUnit) {
+    private DataReadResult readData(long startTime, long endTime, int bucketInterval, String bucketUnit,
+                                    QueryContext query) {
+        boolean traced = FitTrace.begin("health:request");
         DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
-                .aggregate(new DataSource.Builder()
-                .setType(DataSource.TYPE_DERIVED)
-                .setDataType(DataType.TYPE_HEART_RATE_BPM)
-                .setAppPackageName("com.google.android.gms")
-                .setStreamName("resting_heart_rate<-merge_heart_rate_bpm")
-                .build())
                 .read(this.dataType)
-                .bucketByTime(1, TimeUnit.DAYS)
                 .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS);
-                
+        if (this.dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
+            readRequestBuilder.bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit));
+        }
 
         DataReadRequest readRequest = readRequestBuilder.build();
+        FitTrace.end(traced);
 
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
-
-        WritableArray map = Arguments.createArray();
+        return googleFitManager.getReadCoalescer().await(
+            ReadCoalescer.key("health", dataType.getName(), startTime, endTime, bucketInterval, bucketUnit), query,
+            () -> Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(ReadCoalescer.READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+    }
 
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
-                }
-            }
+    /**
+     * Rough upper bound of the raw points per hour, which sizes the shards of long reads.
+     * Wearables record heart rate and SpO2 about once a minute, glucose monitors every five minutes,
+     * the rest is mostly entered by hand.
+     */
+    private double expectedPointsPerHour() {
+        if (this.dataType == DataType.TYPE_HEART_RATE_BPM || this.dataType == HealthDataTypes.TYPE_OXYGEN_SATURATION) {
+            return 60;
         }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
-            }
+        if (this.dataType == HealthDataTypes.TYPE_BLOOD_GLUCOSE) {
+            return 12;
         }
-        return map;
+        return 4;
+    }
+
+    /**
+     * GLE added to allow us to aggregate heart rate data.
+     * It does the same as health history, but adds the aggregation.
+     * Note there are also some changes to the processDataSet method to allow for the aggregation.
+     */
+    public Object getAggregatedHeartRateHistory(long startTime, long endTime, int bucketInterval, String bucketUnit,
+                                                QueryContext query) {
+        // only the heart rate summary is bucketed, other types are raw reads and bypass the cache
+        boolean aggregated = this.dataType == DataType.TYPE_HEART_RATE_BPM;
+        long bucketMillis = aggregated ? HelperUtil.processBucketUnit(bucketUnit).toMillis(bucketInterval) : 0;
+
+        ArrayList<Object> items = AggregateCache.getInstance(mReactContext).readThrough(
+                CACHE_KEY_HEART_RATE_SUMMARY, startTime, endTime, bucketMillis, (gapStart, gapEnd) -> {
+                    boolean traced = FitTrace.begin("heartRateAggregate:request");
+                    DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
+                            .setTimeRange(gapStart, gapEnd, TimeUnit.MILLISECONDS);
+
+                    if (aggregated) {
+                        readRequestBuilder
+                                .aggregate(this.dataType, DataType.AGGREGATE_HEART_RATE_SUMMARY)
+                                .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit));
+                    } else {
+                        readRequestBuilder.read(this.dataType);
+                    }
+
+                    DataReadRequest readRequest = readRequestBuilder.build();
+                    FitTrace.end(traced);
+
+                    DataReadResult dataReadResult = googleFitManager.getReadCoalescer().await(
+                        ReadCoalescer.key("heartRateAggregate", dataType.getName(), gapStart, gapEnd, bucketInterval, bucketUnit), query,
+                        () -> Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(ReadCoalescer.READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+                    query.throwIfCancelled();
+
+                    traced = FitTrace.begin("health:process");
+                    List<AggregateCache.Entry> entries = AggregateCache.entries(dataReadResult.getBuckets(),
+                            dataReadResult.getDataSets(), gapStart, gapEnd, this::processDataSet);
+                    FitTrace.end(traced);
+                    return entries;
+                });
+        boolean traced = FitTrace.begin("health:build");
+        Object result = query.format(items, valueKey());
+        FitTrace.end(traced);
+        return result;
     }
 
-    public boolean saveBloodGlucose(ReadableMap sample) {
-        this.Dataset = createDataForRequest(
-                this.dataType,
-                DataSource.TYPE_RAW,
-                sample.getDouble("value"),
-                (long)sample.getDouble("date"),
-                TimeUnit.MILLISECONDS
-        );
-        new InsertAndVerifyDataTask(this.Dataset).execute();
+    public Object getRestingHeartRateHistory(long startTime, long endTime, int bucketInterval, String bucketUnit,
+                                             QueryContext query) {
+        ArrayList<Object> items = AggregateCache.getInstance(mReactContext).readThrough(
+                CACHE_KEY_RESTING_HEART_RATE + dataType.getName(), startTime, endTime, TimeUnit.DAYS.toMillis(1),
+                (gapStart, gapEnd) -> {
+                    boolean traced = FitTrace.begin("restingHeartRate:request");
+                    DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
+                            .aggregate(new DataSource.Builder()
+                            .setType(DataSource.TYPE_DERIVED)
+                            .setDataType(DataType.TYPE_HEART_RATE_BPM)
+                            .setAppPackageName("com.google.android.gms")
+                            .setStreamName("resting_heart_rate<-merge_heart_rate_bpm")
+                            .build())
+                            .read(this.dataType)
+                            .bucketByTime(1, TimeUnit.DAYS)
+                            .setTimeRange(gapStart, gapEnd, TimeUnit.MILLISECONDS);
+
+                    DataReadRequest readRequest = readRequestBuilder.build();
+                    FitTrace.end(traced);
+
+                    DataReadResult dataReadResult = googleFitManager.getReadCoalescer().await(
+                        ReadCoalescer.key("restingHeartRate", dataType.getName(), gapStart, gapEnd), query,
+                        () -> Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(ReadCoalescer.READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+                    query.throwIfCancelled();
+
+                    traced = FitTrace.begin("health:process");
+                    List<AggregateCache.Entry> entries = AggregateCache.entries(dataReadResult.getBuckets(),
+                            dataReadResult.getDataSets(), gapStart, gapEnd, this::processDataSet);
+                    FitTrace.end(traced);
+                    return entries;
+                });
+        boolean traced = FitTrace.begin("health:build");
+        Object result = query.format(items, valueKey());
+        FitTrace.end(traced);
+        return result;
+    }
 
-        return true;
+    public long saveBloodGlucose(ReadableMap sample) {
+        return googleFitManager.getWriteOutbox().enqueue(WriteOutbox.KIND_BLOOD_GLUCOSE, sample);
     }
 
-    public boolean saveBloodPressure(ReadableMap sample) {
-        this.Dataset = createDataForBloodPressRequest(
-                this.dataType,
-                DataSource.TYPE_RAW,
-                sample.getDouble("systolic"),
-                sample.getDouble("diastolic"),
-                (long)sample.getDouble("date"),
-                TimeUnit.MILLISECONDS
-        );
-        new InsertAndVerifyDataTask(this.Dataset).execute();
+    public long saveBloodPressure(ReadableMap sample) {
+        return googleFitManager.getWriteOutbox().enqueue(WriteOutbox.KIND_BLOOD_PRESSURE, sample);
+    }
 
-        return true;
+    /**
+     * Saves many samples at once, e.g. an import from a glucometer. They are inserted in a few chunked requests.
+     */
+    public long saveBloodGlucose(ReadableArray samples) {
+        return googleFitManager.getWriteOutbox().enqueue(WriteOutbox.KIND_BLOOD_GLUCOSE, samples);
+    }
+
+    public long saveBloodPressure(ReadableArray samples) {
+        return googleFitManager.getWriteOutbox().enqueue(WriteOutbox.KIND_BLOOD_PRESSURE, samples);
     }
 
     public boolean delete(ReadableMap sample) {
@@ -214,99 +265,49 @@ public class HealthHistory {
         return true;
     }
 
-    //Async fit data insert
-    private class InsertAndVerifyDataTask extends AsyncTask<Void, Void, Void> {
-
-        private DataSet Dataset;
-
-        InsertAndVerifyDataTask(DataSet dataset) {
-            this.Dataset = dataset;
-        }
-
-        protected Void doInBackground(Void... params) {
-            // Create a new dataset and insertion request.
-            DataSet dataSet = this.Dataset;
-
-            // [START insert_dataset]
-            // Then, invoke the History API to insert the data and await the result, which is
-            // possible here because of the {@link AsyncTask}. Always include a timeout when calling
-            // await() to prevent hanging that can occur from the service being shutdown because
-            // of low memory or other conditions.
-            //Log.i(TAG, "Inserting the dataset in the History API.");
-            com.google.android.gms.common.api.Status insertStatus =
-                    Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
-                            .await(1, TimeUnit.MINUTES);
-
-            // Before querying the data, check to see if the insertion succeeded.
-            if (!insertStatus.isSuccess()) {
-                //Log.i(TAG, "There was a problem inserting the dataset.");
-                return null;
-            }
-
-            //Log.i(TAG, "Data insert was successful!");
-
-            return null;
-        }
-    }
-
     /**
      * This method creates a dataset object to be able to insert data in google fit
-     * @param dataType DataType Fitness Data Type object
-     * @param dataSourceType int Data Source Id. For example, DataSource.TYPE_RAW
-     * @param value Object Values for the fitness data. They must be int or float
-     * @param date long Time when the activity started
-     * @param timeUnit TimeUnit Time unit in which period is expressed
+     * @param samples List Samples as passed to saveBloodGlucose(), values must be int or float
      * @return
      */
-    private DataSet createDataForRequest(DataType dataType, int dataSourceType, double value,
-                                         long date, TimeUnit timeUnit) {
-        DataSource dataSource = new DataSource.Builder()
-                .setAppPackageName(GoogleFitPackage.PACKAGE_NAME)
-                .setDataType(dataType)
-                .setType(dataSourceType)
-                .build();
-
-        DataSet dataSet = DataSet.create(dataSource);
-        DataPoint dataPoint = dataSet.createDataPoint();
-
-        dataPoint.setTimestamp(date, timeUnit);
-        dataPoint.getValue(FIELD_BLOOD_GLUCOSE_LEVEL).setFloat((float) value);
-
-        dataSet.add(dataPoint);
+    DataSet createDataForRequest(List<JSONObject> samples) throws JSONException {
+        DataSet dataSet = DataSet.create(createDataSource());
+        for (JSONObject sample : samples) {
+            DataPoint dataPoint = dataSet.createDataPoint();
+            dataPoint.setTimestamp(sample.getLong("date"), TimeUnit.MILLISECONDS);
+            dataPoint.getValue(FIELD_BLOOD_GLUCOSE_LEVEL).setFloat((float) sample.getDouble("value"));
+            dataSet.add(dataPoint);
+        }
 
         return dataSet;
     }
 
     /**
      * This method creates a dataset object to be able to insert data in google fit
-     * @param dataType DataType Fitness Data Type object
-     * @param dataSourceType int Data Source Id. For example, DataSource.TYPE_RAW
-     * @param systolic Object Systolic for the fitness data. They must be int or float
-     * @param diastolic Object Diastolic for the fitness data. They must be int or float
-     * @param date long Time when the activity started
-     * @param timeUnit TimeUnit Time unit in which period is expressed
+     * @param samples List Samples as passed to saveBloodPressure(), systolic and diastolic must be int or float
      * @return
      */
-    private DataSet createDataForBloodPressRequest(DataType dataType, int dataSourceType, double systolic,
-                                         double diastolic, long date, TimeUnit timeUnit) {
-        DataSource dataSource = new DataSource.Builder()
-                .setAppPackageName(GoogleFitPackage.PACKAGE_NAME)
-                .setDataType(dataType)
-                .setType(dataSourceType)
-                .build();
-
-        DataSet dataSet = DataSet.create(dataSource);
-        DataPoint dataPoint = dataSet.createDataPoint();
-
-        dataPoint.setTimestamp(date, timeUnit);
-        dataPoint.getValue(FIELD_BLOOD_PRESSURE_SYSTOLIC).setFloat((float) systolic);
-        dataPoint.getValue(FIELD_BLOOD_PRESSURE_DIASTOLIC).setFloat((float) diastolic);
-
-        dataSet.add(dataPoint);
+    DataSet createDataForBloodPressRequest(List<JSONObject> samples) throws JSONException {
+        DataSet dataSet = DataSet.create(createDataSource());
+        for (JSONObject sample : samples) {
+            DataPoint dataPoint = dataSet.createDataPoint();
+            dataPoint.setTimestamp(sample.getLong("date"), TimeUnit.MILLISECONDS);
+            dataPoint.getValue(FIELD_BLOOD_PRESSURE_SYSTOLIC).setFloat((float) sample.getDouble("systolic"));
+            dataPoint.getValue(FIELD_BLOOD_PRESSURE_DIASTOLIC).setFloat((float) sample.getDouble("diastolic"));
+            dataSet.add(dataPoint);
+        }
 
         return dataSet;
     }
 
+    private DataSource createDataSource() {
+        return new DataSource.Builder()
+                .setAppPackageName(GoogleFitPackage.PACKAGE_NAME)
+                .setDataType(this.dataType)
+                .setType(DataSource.TYPE_RAW)
+                .build();
+    }
+
     private void processDataSet(DataSet dataSet, WritableArray map) {
         Format formatter = new SimpleDateFormat("EEE");
 
@@ -346,4 +347,40 @@ public class HealthHistory {
         }
     }
 
+    private void processDataSet(DataSet dataSet, ColumnarWriter writer) {
+        for (DataPoint dp : dataSet.getDataPoints()) {
+            List<Field> fields = dp.getDataType().getFields();
+            if (fields.isEmpty()) continue;
+            Field field = fields.get(0);
+
+            writer.row(
+                    dp.getStartTime(TimeUnit.MILLISECONDS),
+                    dp.getEndTime(TimeUnit.MILLISECONDS),
+                    dp.getOriginalDataSource().getStreamIdentifier());
+            if (this.dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
+                writer.put(ColumnarWriter.VALUE, dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC).asFloat());
+                writer.put("diastolic", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC).asFloat());
+            } else if (this.dataType == DataType.TYPE_HEART_RATE_BPM && field.toString().startsWith("average")) {
+                writer.put(ColumnarWriter.VALUE, dp.getValue(Field.FIELD_AVERAGE).asFloat());
+                writer.put("min", dp.getValue(Field.FIELD_MIN).asFloat());
+                writer.put("max", dp.getValue(Field.FIELD_MAX).asFloat());
+            } else {
+                writer.put(ColumnarWriter.VALUE, dp.getValue(field).asFloat());
+            }
+        }
+    }
+
+    /**
+     * Field of the row format that becomes the value column of the columnar format.
+     */
+    private String valueKey() {
+        if (this.dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
+            return "systolic";
+        }
+        if (this.dataType == DataType.TYPE_HEART_RATE_BPM) {
+            return "average";
+        }
+        return ColumnarWriter.VALUE;
+    }
+
 }
@@ -18,9 +18,6 @@ import com.google.android.gms.fitness.data.Device;
 import com.google.android.gms.fitness.data.Field;
 import com.google.android.gms.fitness.request.DataReadRequest;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 final class HelperUtil {
@@ -79,18 +76,22 @@ final class HelperUtil {
     }
 
     public static void processDataSet(ReactContext reactContext, String TAG, DataSet dataSet, WritableArray wtArray) {
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-        dateFormat.setTimeZone(TimeZone.getDefault());
-
-        Log.d(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
+        if (FitLog.isLoggable(Log.DEBUG)) {
+            Log.d(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
+        }
         for (DataPoint dp : dataSet.getDataPoints()) {
             // log debug data
-            Log.d(TAG,"Data point:");
-            Log.d(TAG,"\tType: "+ dp.getDataType().getName());
-            Log.d(TAG,"\tStart: " + dateFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.d(TAG,"\tEnd: " + dateFormat.format(dp.getEndTime(TimeUnit.MILLISECONDS)));
+            boolean logPoint = FitLog.point(TAG, Log.DEBUG);
+            if (logPoint) {
+                Log.d(TAG,"Data point:");
+                Log.d(TAG,"\tType: "+ dp.getDataType().getName());
+                Log.d(TAG,"\tStart: " + FitLog.time(dp.getStartTime(TimeUnit.MILLISECONDS)));
+                Log.d(TAG,"\tEnd: " + FitLog.time(dp.getEndTime(TimeUnit.MILLISECONDS)));
+            }
             for (Field field : dp.getDataType().getFields()) {
-                Log.d(TAG,"\tField: " + field.getName() +  " Value: " + dp.getValue(field));
+                if (logPoint) {
+                    Log.d(TAG,"\tField: " + field.getName() +  " Value: " + dp.getValue(field));
+                }
 
                 // add data
                 WritableMap innerMap = Arguments.createMap();
@@ -101,8 +102,7 @@ final class HelperUtil {
                 String appPackageName = dp.getOriginalDataSource().getAppPackageName();
                 if (appPackageName != null) {
                     innerMap.putString("appPackageName", appPackageName);
-                    PackageManager pm = reactContext.getPackageManager();
-                    String appName = getAppName(pm, appPackageName);
+                    String appName = AppNameCache.get(reactContext, appPackageName);
                     if (appName != null) {
                         innerMap.putString("appName", appName);
                     }
@@ -16,8 +16,11 @@ import com.google.android.gms.fitness.data.Value;
 import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.result.DataReadResult;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.text.DateFormat;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class HydrationHistory {
@@ -25,7 +28,6 @@ public class HydrationHistory {
   private GoogleFitManager googleFitManager;
 
   private static final String TAG = "HydrationHistory";
-  private static final int MAX_DATAPOINTS_PER_SINGLE_REQUEST = 900;
   private DataType dataType = DataType.TYPE_HYDRATION;
 
   public HydrationHistory(ReactContext reactContext, GoogleFitManager googleFitManager) {
@@ -42,15 +44,17 @@ public class HydrationHistory {
       .build();
   }
 
-  public ReadableArray getHistory(long startTime, long endTime) {
+  public ReadableArray getHistory(long startTime, long endTime, QueryContext query) {
     DateFormat dateFormat = DateFormat.getDateInstance();
 
     DataReadRequest readRequest = new DataReadRequest.Builder()
       .read(this.dataType)
       .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS).build();
 
-    DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest)
-      .await(1, TimeUnit.MINUTES);
+    DataReadResult dataReadResult = googleFitManager.getReadCoalescer().await(
+      ReadCoalescer.key("hydration", startTime, endTime), query,
+      () -> Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest)
+        .await(ReadCoalescer.READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
 
     WritableArray map = Arguments.createArray();
 
@@ -76,31 +80,21 @@ public class HydrationHistory {
     }
   }
 
-  public boolean save(ReadableArray hydrationArray) {
+  public long save(ReadableArray hydrationArray) {
+    // the outbox limits each insert to WriteOutbox.MAX_POINTS_PER_INSERT points
+    return googleFitManager.getWriteOutbox().enqueue(WriteOutbox.KIND_HYDRATION, hydrationArray);
+  }
+
+  DataSet createDataForRequest(List<JSONObject> samples) throws JSONException {
     DataSource hydrationSource = this.getDataSource();
-    ArrayList<DataPoint> dataPoints = new ArrayList<DataPoint>();
-    ArrayList<DataSet> dataSets = new ArrayList<DataSet>();
-    for (int index = 0 ; index < hydrationArray.size() ; index++) {
-      ReadableMap hydrationSample = hydrationArray.getMap(index);
-      if (hydrationSample != null) {
-        dataPoints.add(DataPoint.builder(hydrationSource)
-          .setTimestamp((long) hydrationSample.getDouble("date"), TimeUnit.MILLISECONDS)
-          .setField(Field.FIELD_VOLUME, (float) hydrationSample.getDouble("waterConsumed"))
-          .build());
-      }
-      if (dataPoints.size() % MAX_DATAPOINTS_PER_SINGLE_REQUEST == 0) {
-        // Be sure to limit each individual request to 1000 datapoints. Exceeding this limit could result in an error.
-        // https://developers.google.com/fit/android/history#insert_data
-        dataSets.add(DataSet.builder(hydrationSource).addAll(dataPoints).build());
-        dataPoints.clear();
-      }
-    }
-    if (dataPoints.size() > 0) {
-      dataSets.add(DataSet.builder(hydrationSource).addAll(dataPoints).build());
+    DataSet.Builder dataSet = DataSet.builder(hydrationSource);
+    for (JSONObject hydrationSample : samples) {
+      dataSet.add(DataPoint.builder(hydrationSource)
+        .setTimestamp(hydrationSample.getLong("date"), TimeUnit.MILLISECONDS)
+        .setField(Field.FIELD_VOLUME, (float) hydrationSample.getDouble("waterConsumed"))
+        .build());
     }
-    new SaveDataHelper(dataSets, googleFitManager).execute();
-
-    return true;
+    return dataSet.build();
   }
 
   public boolean delete(ReadableMap options) {
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.Looper;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work of the module that still runs on the main thread, e.g. deadline checks, sensor
+ * callbacks and authorization results. Task listeners run on {@link QueryExecutor#callbacks()} instead.
+ *
+ * Callers wrap the work in {@link #begin} / {@link #end}; only time spent on the main thread is recorded,
+ * so the same code may also run elsewhere. Per tag it keeps the count, the total and longest time and the
+ * number of runs over one frame (16ms), see {@link #getStats}.
+ */
+final class MainThreadMonitor {
+
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private static final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    private MainThreadMonitor() {
+    }
+
+    static long begin() {
+        return System.nanoTime();
+    }
+
+    static void end(String tag, long start) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        Stats current = stats.get(tag);
+        if (current == null) {
+            Stats created = new Stats();
+            current = stats.putIfAbsent(tag, created);
+            if (current == null) {
+                current = created;
+            }
+        }
+        current.add(nanos);
+    }
+
+    /**
+     * {@code {tag: {count, totalMs, maxMs, overFrame}}} for the main thread work recorded since the last reset.
+     */
+    static WritableMap getStats() {
+        WritableMap result = Arguments.createMap();
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            result.putMap(entry.getKey(), entry.getValue().toWritableMap());
+        }
+        return result;
+    }
+
+    static void reset() {
+        stats.clear();
+    }
+
+    private static class Stats {
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+        private long overFrame;
+
+        synchronized void add(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            if (nanos > FRAME_NANOS) {
+                overFrame++;
+            }
+        }
+
+        synchronized WritableMap toWritableMap() {
+            WritableMap map = Arguments.createMap();
+            map.putDouble("count", count);
+            map.putDouble("totalMs", totalNanos / 1e6);
+            map.putDouble("maxMs", maxNanos / 1e6);
+            map.putDouble("overFrame", overFrame);
+            return map;
+        }
+    }
+}
@@ -18,6 +18,7 @@ import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.result.DataReadResult;
 
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -37,6 +38,7 @@ public class NutritionHistory {
     private GoogleFitManager googleFitManager;
 
     private static final String TAG = "NutritionHistory";
+    private static final String CACHE_KEY = "nutrition";
     private static final String[] NUTRIENTS_ARRAY = new String[] {
             Field.NUTRIENT_CALORIES,
             Field.NUTRIENT_TOTAL_FAT,
@@ -64,55 +66,49 @@ public class NutritionHistory {
         this.googleFitManager = googleFitManager;
     }
 
-    public ReadableArray aggregateDataByDate(long startTime, long endTime, int bucketInterval, String bucketUnit) {
+    public ReadableArray aggregateDataByDate(long startTime, long endTime, int bucketInterval, String bucketUnit, QueryContext query) {
 
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
-        Log.i(TAG, "Range End: " + dateFormat.format(endTime));
-
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_NUTRITION, DataType.AGGREGATE_NUTRITION_SUMMARY)
-                .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS).build();
-
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest)
-                .await(1, TimeUnit.MINUTES);
-
-        WritableArray map = Arguments.createArray();
-
-        // Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
-                }
-            }
-        }
-        // Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            Log.i(TAG, "Number of returned DataSets: " + dataReadResult.getDataSets().size());
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
-            }
+        if (FitLog.isLoggable(Log.INFO)) {
+            Log.i(TAG, "Range Start: " + FitLog.time(startTime));
+            Log.i(TAG, "Range End: " + FitLog.time(endTime));
         }
 
-        return map;
+        // closed buckets come from the cache, only the gaps between them go to Google Fit
+        long bucketMillis = HelperUtil.processBucketUnit(bucketUnit).toMillis(bucketInterval);
+        ArrayList<Object> items = AggregateCache.getInstance(mReactContext).readThrough(
+                CACHE_KEY, startTime, endTime, bucketMillis, (gapStart, gapEnd) -> {
+                    DataReadRequest readRequest = new DataReadRequest.Builder()
+                            .aggregate(DataType.TYPE_NUTRITION, DataType.AGGREGATE_NUTRITION_SUMMARY)
+                            .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
+                            .setTimeRange(gapStart, gapEnd, TimeUnit.MILLISECONDS).build();
+
+                    DataReadResult dataReadResult = googleFitManager.getReadCoalescer().await(
+                            ReadCoalescer.key("nutrition", gapStart, gapEnd, bucketInterval, bucketUnit), query,
+                            () -> Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest)
+                                    .await(ReadCoalescer.READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+
+                    if (FitLog.isLoggable(Log.INFO)) {
+                        Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
+                    }
+                    return AggregateCache.entries(dataReadResult.getBuckets(), dataReadResult.getDataSets(),
+                            gapStart, gapEnd, this::processDataSet);
+                });
+
+        return Arguments.makeNativeArray(items);
     }
 
     private void processDataSet(DataSet dataSet, WritableArray map) {
-        Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        DateFormat timeFormat = DateFormat.getTimeInstance();
+        if (FitLog.isLoggable(Log.INFO)) {
+            Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
+        }
 
         for (DataPoint dp : dataSet.getDataPoints()) {
-            Log.i(TAG, "Data point:");
-            Log.i(TAG, "\tType: " + dp.getDataType().getName());
-            Log.i(TAG, "\tStart: " + dateFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)) + " "
-                    + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "\tEnd: " + dateFormat.format(dp.getEndTime(TimeUnit.MILLISECONDS)) + " "
-                    + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
+            if (FitLog.point(TAG, Log.INFO)) {
+                Log.i(TAG, "Data point:");
+                Log.i(TAG, "\tType: " + dp.getDataType().getName());
+                Log.i(TAG, "\tStart: " + FitLog.time(dp.getStartTime(TimeUnit.MILLISECONDS)));
+                Log.i(TAG, "\tEnd: " + FitLog.time(dp.getEndTime(TimeUnit.MILLISECONDS)));
+            }
 
             WritableMap nutritionMap = Arguments.createMap();
             Value nutrients = dp.getValue((Field.FIELD_NUTRIENTS));
@@ -0,0 +1,421 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.PromiseImpl;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and payload counters per bridge method, off unless enabled through {@code configure}.
+ *
+ * Every {@code @ReactMethod} wraps its promise or callbacks with {@link #wrap}. A call is split into stages:
+ * {@code queue} (waiting for a query worker), {@code fit} (waiting on Google Fit, recorded by the readers
+ * through {@link #begin} / {@link #end}), {@code process} (the rest of the worker time, i.e. iterating the
+ * response and building the result maps) and {@code serialize} (handing the result to the bridge). Each stage
+ * keeps a count, total, max and a histogram of power-of-two millisecond buckets, all in atomics. Results
+ * are measured by walking them: {@code points} counts the maps, {@code bytes} estimates their JSON size.
+ * With a report interval the stats are also sent as {@link #EVENT_STATS}.
+ */
+final class PerfStats {
+
+    enum Stage {
+        QUEUE("queue"), FIT("fit"), PROCESS("process"), SERIALIZE("serialize"), TOTAL("total");
+
+        final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    static final String EVENT_STATS = "GoogleFitPerformanceStats";
+
+    // bucket i counts durations below 2^i ms, the last one everything above
+    private static final int HISTOGRAM_BUCKETS = 16;
+
+    private static volatile boolean enabled = false;
+
+    private static final ConcurrentHashMap<String, MethodStats> methods = new ConcurrentHashMap<>();
+    // the call a query worker is running, so readers can attribute their Fit waits
+    private static final ThreadLocal<Call> current = new ThreadLocal<>();
+    private static final Handler reportHandler = new Handler(Looper.getMainLooper());
+    private static Runnable report;
+
+    private PerfStats() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        PerfStats.enabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sends the stats every {@code intervalMillis}, or stops sending them if the interval is 0.
+     */
+    static synchronized void setReportInterval(final ReactContext reactContext, final long intervalMillis) {
+        if (report != null) {
+            reportHandler.removeCallbacks(report);
+            report = null;
+        }
+        if (intervalMillis <= 0) {
+            return;
+        }
+        report = new Runnable() {
+            @Override
+            public void run() {
+                if (reactContext.hasActiveCatalystInstance()) {
+                    reactContext
+                            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                            .emit(EVENT_STATS, getStats());
+                }
+                reportHandler.postDelayed(this, intervalMillis);
+            }
+        };
+        reportHandler.postDelayed(report, intervalMillis);
+    }
+
+    /**
+     * Times the promise of a bridge method. Returns the promise itself when stats are off.
+     */
+    static Promise wrap(String method, final Promise promise) {
+        if (!enabled) {
+            return promise;
+        }
+        final Call call = new Call(stats(method));
+        return new TimedPromise(call, promise);
+    }
+
+    /**
+     * Times a callback based bridge method, the call ends with the first of its callbacks.
+     */
+    static Callback[] wrap(String method, final Callback errorCallback, final Callback successCallback) {
+        if (!enabled) {
+            return new Callback[]{errorCallback, successCallback};
+        }
+        final Call call = new Call(stats(method));
+        return new Callback[]{
+                args -> {
+                    call.finish(null, false, 0);
+                    errorCallback.invoke(args);
+                },
+                args -> {
+                    // measured before the bridge consumes the native maps
+                    long[] size = size(args.length > 0 ? args[0] : null);
+                    long start = System.nanoTime();
+                    successCallback.invoke(args);
+                    call.finish(size, true, System.nanoTime() - start);
+                }
+        };
+    }
+
+    /**
+     * Counts a bridge method without a result.
+     */
+    static void count(String method) {
+        if (enabled) {
+            new Call(stats(method)).finish(null, true, 0);
+        }
+    }
+
+    /**
+     * Called by a query worker when it picks up the read of the promise. Returns the call, if any.
+     */
+    static Call start(Promise promise) {
+        if (!(promise instanceof TimedPromise)) {
+            return null;
+        }
+        Call call = ((TimedPromise) promise).call;
+        call.workerStart = System.nanoTime();
+        call.stats.record(Stage.QUEUE, call.workerStart - call.start);
+        current.set(call);
+        return call;
+    }
+
+    /**
+     * Called by the query worker once the read is done, the worker time not spent on Fit counts as processing.
+     */
+    static void finish(Call call) {
+        if (call == null) {
+            return;
+        }
+        current.remove();
+        long worker = System.nanoTime() - call.workerStart;
+        call.stats.record(Stage.PROCESS, Math.max(0, worker - call.fitNanos.get() - call.serializeNanos.get()));
+    }
+
+    static long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since {@link #begin} for the call running on this thread, if any.
+     */
+    static void end(Stage stage, long start) {
+        if (start == 0) {
+            return;
+        }
+        Call call = current.get();
+        if (call == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        if (stage == Stage.FIT) {
+            call.fitNanos.addAndGet(nanos);
+        }
+        call.stats.record(stage, nanos);
+    }
+
+    /**
+     * {@code {method: {calls, errors, points, bytes, maxPoints, maxBytes, queue, fit, process, serialize, total}}}
+     * where every stage is {@code {count, totalMs, maxMs, histogram}}.
+     */
+    static WritableMap getStats() {
+        WritableMap result = Arguments.createMap();
+        for (Map.Entry<String, MethodStats> entry : methods.entrySet()) {
+            result.putMap(entry.getKey(), entry.getValue().toWritableMap());
+        }
+        return result;
+    }
+
+    static void reset() {
+        methods.clear();
+    }
+
+    private static MethodStats stats(String method) {
+        MethodStats stats = methods.get(method);
+        if (stats == null) {
+            MethodStats created = new MethodStats();
+            stats = methods.putIfAbsent(method, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    static final class Call {
+        final MethodStats stats;
+        final long start = System.nanoTime();
+        volatile long workerStart;
+        final AtomicLong fitNanos = new AtomicLong();
+        final AtomicLong serializeNanos = new AtomicLong();
+
+        Call(MethodStats stats) {
+            this.stats = stats;
+        }
+
+        void finish(long[] size, boolean success, long serialize) {
+            serializeNanos.addAndGet(serialize);
+            stats.calls.incrementAndGet();
+            if (!success) {
+                stats.errors.incrementAndGet();
+            }
+            if (size != null) {
+                stats.points.addAndGet(size[0]);
+                stats.bytes.addAndGet(size[1]);
+                max(stats.maxPoints, size[0]);
+                max(stats.maxBytes, size[1]);
+            }
+            if (serialize > 0) {
+                stats.record(Stage.SERIALIZE, serialize);
+            }
+            stats.record(Stage.TOTAL, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Every reject overload of {@link PromiseImpl} ends up in the four argument one, which hands the original
+     * code, message, Throwable and userInfo to the wrapped promise unchanged.
+     */
+    private static final class TimedPromise extends PromiseImpl {
+        final Call call;
+        final Promise promise;
+
+        TimedPromise(Call call, Promise promise) {
+            super(null, null);
+            this.call = call;
+            this.promise = promise;
+        }
+
+        @Override
+        public void resolve(@Nullable Object result) {
+            // measured before the bridge consumes the native maps
+            long[] size = size(result);
+            long start = System.nanoTime();
+            promise.resolve(result);
+            call.finish(size, true, System.nanoTime() - start);
+        }
+
+        @Override
+        public void reject(@Nullable String code, @Nullable String message, @Nullable Throwable throwable,
+                           @Nullable WritableMap userInfo) {
+            call.finish(null, false, 0);
+            promise.reject(code, message, throwable, userInfo);
+        }
+    }
+
+    static final class MethodStats {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong points = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong maxPoints = new AtomicLong();
+        final AtomicLong maxBytes = new AtomicLong();
+        final StageStats[] stages = new StageStats[Stage.values().length];
+
+        MethodStats() {
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new StageStats();
+            }
+        }
+
+        void record(Stage stage, long nanos) {
+            stages[stage.ordinal()].record(nanos);
+        }
+
+        WritableMap toWritableMap() {
+            WritableMap map = Arguments.createMap();
+            map.putDouble("calls", calls.get());
+            map.putDouble("errors", errors.get());
+            map.putDouble("points", points.get());
+            map.putDouble("bytes", bytes.get());
+            map.putDouble("maxPoints", maxPoints.get());
+            map.putDouble("maxBytes", maxBytes.get());
+            for (Stage stage : Stage.values()) {
+                map.putMap(stage.key, stages[stage.ordinal()].toWritableMap());
+            }
+            return map;
+        }
+    }
+
+    static final class StageStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            max(maxNanos, nanos);
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            histogram.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(millis), HISTOGRAM_BUCKETS - 1));
+        }
+
+        WritableMap toWritableMap() {
+            WritableMap map = Arguments.createMap();
+            map.putDouble("count", count.get());
+            map.putDouble("totalMs", totalNanos.get() / 1e6);
+            map.putDouble("maxMs", maxNanos.get() / 1e6);
+            WritableArray buckets = Arguments.createArray();
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                buckets.pushDouble(histogram.get(i));
+            }
+            map.putArray("histogram", buckets);
+            return map;
+        }
+    }
+
+    private static void max(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@code [points, bytes]} of a result, null if there is none.
+     */
+    private static long[] size(Object result) {
+        if (result == null) {
+            return null;
+        }
+        long[] size = new long[2];
+        measure(result, size);
+        return size;
+    }
+
+    /**
+     * Adds the number of maps and the approximate JSON size of the value to {@code size}.
+     */
+    private static void measure(Object value, long[] size) {
+        if (value instanceof ReadableMap) {
+            ReadableMap map = (ReadableMap) value;
+            size[0]++;
+            size[1] += 2;
+            ReadableMapKeySetIterator keys = map.keySetIterator();
+            while (keys.hasNextKey()) {
+                String key = keys.nextKey();
+                size[1] += key.length() + 4;
+                switch (map.getType(key)) {
+                    case Map:
+                        measure(map.getMap(key), size);
+                        break;
+                    case Array:
+                        measure(map.getArray(key), size);
+                        break;
+                    case String:
+                        size[1] += map.getString(key).length() + 2;
+                        break;
+                    default:
+                        size[1] += 8;
+                }
+            }
+        } else if (value instanceof ReadableArray) {
+            ReadableArray array = (ReadableArray) value;
+            size[1] += 2;
+            for (int i = 0; i < array.size(); i++) {
+                size[1]++;
+                switch (array.getType(i)) {
+                    case Map:
+                        measure(array.getMap(i), size);
+                        break;
+                    case Array:
+                        measure(array.getArray(i), size);
+                        break;
+                    case String:
+                        size[1] += array.getString(i).length() + 2;
+                        break;
+                    default:
+                        size[1] += 8;
+                }
+            }
+        } else if (value instanceof String) {
+            size[1] += ((String) value).length() + 2;
+        } else {
+            size[1] += 8;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-call options of a read, passed from JS as the trailing options map of a query method.
+ *
+ * A read that was given a {@code requestId} can be cancelled from JS, see {@link QueryExecutor#cancel}.
+ * A read that was given a {@code timeout} (milliseconds) has a deadline: its waits on Fit, including
+ * follow-up reads, are bounded by {@link #waitMillis}, and once the deadline passes the read is cancelled
+ * with {@code E_TIMEOUT}. Readers call {@link #throwIfCancelled} after their waits on Fit, so a cancelled
+ * read stops before its result is built.
+ *
+ * The result, a failure and a cancel may race for the promise of a read, e.g. a deadline firing on the main
+ * looper while a worker resolves. They all settle it through {@link #resolve} and {@link #reject}, and only the
+ * first one reaches JS.
+ */
+final class QueryContext {
+
+    static final String FORMAT_ROWS = "rows";
+    static final String FORMAT_COLUMNAR = "columnar";
+    static final String FORMAT_DICTIONARY = "dictionary";
+
+    static final String ROLLUP_DAY = "day";
+
+    static final String E_CANCELLED = "E_CANCELLED";
+    static final String E_TIMEOUT = "E_TIMEOUT";
+
+    private static final long NO_DEADLINE = 0;
+
+    static final QueryContext DEFAULT = new QueryContext(FORMAT_ROWS, null, null, NO_DEADLINE);
+
+    final String format;
+    @Nullable
+    final String rollup;
+    @Nullable
+    final String requestId;
+    // elapsed realtime millis, NO_DEADLINE if the read may take as long as the readers' own timeouts
+    final long deadline;
+
+    private volatile boolean cancelled = false;
+    private final AtomicBoolean settled = new AtomicBoolean();
+    @Nullable
+    private volatile Promise promise;
+    @Nullable
+    private volatile Future<?> future;
+
+    private QueryContext(String format, @Nullable String rollup, @Nullable String requestId, long deadline) {
+        this.format = format;
+        this.rollup = rollup;
+        this.requestId = requestId;
+        this.deadline = deadline;
+    }
+
+    static QueryContext from(@Nullable ReadableMap options) {
+        if (options == null) {
+            // not DEFAULT, which is shared and can't track whether a promise was settled
+            return new QueryContext(FORMAT_ROWS, null, null, NO_DEADLINE);
+        }
+        String format = options.hasKey("format") && !options.isNull("format")
+                ? options.getString("format")
+                : FORMAT_ROWS;
+        String rollup = options.hasKey("rollup") && !options.isNull("rollup")
+                ? options.getString("rollup")
+                : null;
+        String requestId = idOf(options, "requestId");
+        long deadline = options.hasKey("timeout") && !options.isNull("timeout")
+                ? SystemClock.elapsedRealtime() + Math.max(0, (long) options.getDouble("timeout"))
+                : NO_DEADLINE;
+        return new QueryContext(format, rollup, requestId, deadline);
+    }
+
+    /**
+     * Reads an id that JS may have passed as a string or a number, numbers are formatted like JS's
+     * {@code String(id)} so both name the same read. Returns null if the key is missing or of another type.
+     */
+    @Nullable
+    static String idOf(ReadableMap options, String key) {
+        if (!options.hasKey(key)) {
+            return null;
+        }
+        switch (options.getType(key)) {
+            case String:
+                return options.getString(key);
+            case Number:
+                double id = options.getDouble(key);
+                return id == Math.rint(id) && !Double.isInfinite(id) ? Long.toString((long) id) : Double.toString(id);
+            default:
+                return null;
+        }
+    }
+
+    boolean hasDeadline() {
+        return deadline != NO_DEADLINE;
+    }
+
+    /**
+     * How long the next wait on Fit may take: the time left until the deadline, or the reader's own
+     * timeout if the caller did not pass one. Cancels the read with {@code E_TIMEOUT} once the deadline passed.
+     */
+    long waitMillis(long defaultTimeout, TimeUnit unit) {
+        if (!hasDeadline()) {
+            return unit.toMillis(defaultTimeout);
+        }
+        throwIfCancelled();
+        return Math.max(1, deadline - SystemClock.elapsedRealtime());
+    }
+
+    boolean isColumnar() {
+        return FORMAT_COLUMNAR.equals(format);
+    }
+
+    boolean isDictionary() {
+        return FORMAT_DICTIONARY.equals(format);
+    }
+
+    /**
+     * Whether the samples should be summed into local calendar days natively, see {@link DailyRollup}.
+     */
+    boolean isDailyRollup() {
+        return ROLLUP_DAY.equals(rollup);
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops a cancelled or timed out read, the executor turns the exception into a no-op instead of a rejection.
+     */
+    void throwIfCancelled() {
+        if (hasDeadline() && SystemClock.elapsedRealtime() >= deadline) {
+            expire();
+        }
+        if (cancelled) {
+            throw new CancellationException("Query " + (requestId != null ? requestId + " " : "") + "was cancelled");
+        }
+    }
+
+    /**
+     * Claims the promise of the read. Returns true for the first caller only, the others must not settle it.
+     */
+    boolean settle() {
+        return this == DEFAULT || settled.compareAndSet(false, true);
+    }
+
+    void resolve(Promise promise, @Nullable Object value) {
+        if (settle()) {
+            promise.resolve(value);
+        }
+    }
+
+    void reject(Promise promise, Throwable e) {
+        if (settle()) {
+            promise.reject(e);
+        }
+    }
+
+    /**
+     * Ties the read to the promise it settles, which is rejected when the read is cancelled.
+     */
+    void attach(Promise promise) {
+        this.promise = promise;
+    }
+
+    /**
+     * Ties a read on the query pool to its future, so cancelling interrupts it.
+     */
+    void setFuture(Future<?> future) {
+        this.future = future;
+        // cancelled before the future was known
+        if (cancelled) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Rejects the promise with {@code E_CANCELLED} and interrupts a pending wait on Fit.
+     */
+    void cancel() {
+        stop(E_CANCELLED, "Query " + requestId + " was cancelled");
+    }
+
+    /**
+     * Rejects the promise with {@code E_TIMEOUT} and interrupts a pending wait on Fit.
+     */
+    void expire() {
+        stop(E_TIMEOUT, "Query " + (requestId != null ? requestId + " " : "") + "ran past its timeout");
+    }
+
+    private void stop(String code, String message) {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+        }
+        Future<?> running = future;
+        if (running != null) {
+            running.cancel(true);
+        }
+        Promise pending = promise;
+        if (pending != null && settle()) {
+            pending.reject(code, message);
+        }
+    }
+
+    /**
+     * Hands the rows of a read to JS in the requested format.
+     */
+    Object format(List<Object> rows, String valueKey) {
+        if (isColumnar()) {
+            return ColumnarWriter.fromRows(rows, valueKey).toWritableMap();
+        }
+        if (isDictionary()) {
+            return SourceDictionary.encode(rows);
+        }
+        return Arguments.makeNativeArray(rows);
+    }
+
+    /**
+     * Like {@link #format}, but puts the result into the given map.
+     */
+    void put(WritableMap target, String key, List<Object> rows, String valueKey) {
+        Object result = format(rows, valueKey);
+        if (result instanceof ReadableArray) {
+            target.putArray(key, (ReadableArray) result);
+        } else {
+            target.putMap(key, (ReadableMap) result);
+        }
+    }
+}
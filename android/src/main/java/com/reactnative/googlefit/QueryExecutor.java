@@ -0,0 +1,256 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.react.bridge.Promise;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking Google Fit reads off the React native-modules thread.
+ *
+ * The history readers wait on Fit with {@code await(...)} / {@code Tasks.await(...)}, so running them
+ * directly from a {@code @ReactMethod} serializes every bridge call behind the slowest query.
+ * This pool lets independent queries run side by side and settles the promise from the worker thread.
+ */
+final class QueryExecutor {
+
+    static final int DEFAULT_POOL_SIZE = 4;
+    private static final int MAX_POOL_SIZE = 16;
+    private static final int CALLBACK_POOL_SIZE = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final String TAG = "RNGoogleFit";
+
+    private final ThreadPoolExecutor executor;
+    // Task continuations, kept apart from the query pool so they never queue behind blocking reads
+    private final ThreadPoolExecutor callbackExecutor;
+    // reads that were given a request id, until they settle
+    private final ConcurrentHashMap<String, QueryContext> active = new ConcurrentHashMap<>();
+    // pending deadline checks of reads that were given a timeout, until they settle
+    private final ConcurrentHashMap<QueryContext, Runnable> deadlines = new ConcurrentHashMap<>();
+    // expiring a read only rejects its promise and interrupts its worker, so the main looper is fine for it
+    private final Handler deadlineHandler = new Handler(Looper.getMainLooper());
+
+    QueryExecutor(int poolSize) {
+        int size = clampPoolSize(poolSize);
+        this.executor = new TracedThreadPoolExecutor(size, "RNGoogleFit-query-");
+        this.callbackExecutor = new TracedThreadPoolExecutor(CALLBACK_POOL_SIZE, "RNGoogleFit-callback-");
+        // idle workers are released, so an app that never queries does not keep threads around
+        this.executor.allowCoreThreadTimeOut(true);
+        this.callbackExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    QueryExecutor() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Runs the query on the pool, resolving the promise with its result or rejecting it with the thrown exception.
+     */
+    void submit(final Promise promise, final Callable<?> query) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                PerfStats.Call call = PerfStats.start(promise);
+                try {
+                    promise.resolve(query.call());
+                } catch (Exception e) {
+                    Log.w(TAG, "Query failed: " + e);
+                    promise.reject(e);
+                } finally {
+                    PerfStats.finish(call);
+                }
+            }
+        });
+    }
+
+    /**
+     * Like {@link #submit(Promise, Callable)}, but the read can be cancelled through its request id and
+     * is cancelled with {@code E_TIMEOUT} when its deadline passes. A cancelled read is interrupted and
+     * its result, if any, is dropped.
+     */
+    void submit(final Promise promise, final QueryContext context, final Callable<?> query) {
+        if (context.requestId == null && !context.hasDeadline()) {
+            submit(promise, query);
+            return;
+        }
+
+        register(context, promise);
+        context.setFuture(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                PerfStats.Call call = PerfStats.start(promise);
+                try {
+                    context.throwIfCancelled();
+                    Object result = query.call();
+                    context.throwIfCancelled();
+                    context.resolve(promise, result);
+                } catch (Exception e) {
+                    // the promise of a cancelled read was already rejected by cancel()
+                    if (context.settle()) {
+                        Log.w(TAG, "Query failed: " + e);
+                        promise.reject(e);
+                    }
+                } finally {
+                    finish(context);
+                    PerfStats.finish(call);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Makes a read that settles its promise from Task listeners cancellable and bounded by its deadline.
+     * The reader checks {@link QueryContext#isCancelled} in its listeners and calls {@link #finish} once
+     * it has settled.
+     */
+    void register(final QueryContext context, Promise promise) {
+        if (context.requestId == null && !context.hasDeadline()) {
+            return;
+        }
+        context.attach(promise);
+
+        if (context.requestId != null) {
+            QueryContext previous = active.put(context.requestId, context);
+            if (previous != null && previous != context) {
+                // a request id is reused while the old read runs, the old one is superseded
+                previous.cancel();
+            }
+        }
+
+        if (context.hasDeadline()) {
+            Runnable expire = new Runnable() {
+                @Override
+                public void run() {
+                    long start = MainThreadMonitor.begin();
+                    finish(context);
+                    context.expire();
+                    MainThreadMonitor.end("deadline", start);
+                }
+            };
+            deadlines.put(context, expire);
+            deadlineHandler.postDelayed(expire, Math.max(0, context.deadline - SystemClock.elapsedRealtime()));
+        }
+    }
+
+    void finish(QueryContext context) {
+        if (context.requestId != null) {
+            active.remove(context.requestId, context);
+        }
+        Runnable expire = deadlines.remove(context);
+        if (expire != null) {
+            deadlineHandler.removeCallbacks(expire);
+        }
+    }
+
+    /**
+     * Cancels the read with the given request id. Returns false if no such read is running.
+     */
+    boolean cancel(String requestId) {
+        QueryContext context = active.remove(requestId);
+        if (context == null) {
+            return false;
+        }
+        context.cancel();
+        return true;
+    }
+
+    void execute(Runnable runnable) {
+        executor.execute(runnable);
+    }
+
+    /**
+     * Executor for the listeners of Google Play services Tasks. Without one they run on the main thread,
+     * together with all the data point iteration and map building of the response.
+     */
+    Executor callbacks() {
+        return callbackExecutor;
+    }
+
+    int getPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Resizes the pool. Queries already running keep their thread; queued ones pick up the new limit.
+     */
+    synchronized void setPoolSize(int poolSize) {
+        int size = clampPoolSize(poolSize);
+        // core size must never exceed max size, so order the updates depending on the direction
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        callbackExecutor.shutdownNow();
+    }
+
+    private static int clampPoolSize(int poolSize) {
+        return Math.max(1, Math.min(poolSize, MAX_POOL_SIZE));
+    }
+
+    /**
+     * Closes the trace sections a query or callback left open, e.g. because it threw, before the thread runs
+     * the next one.
+     */
+    private static final class TracedThreadPoolExecutor extends ThreadPoolExecutor {
+
+        TracedThreadPoolExecutor(int size, String prefix) {
+            super(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new QueryThreadFactory(prefix));
+        }
+
+        @Override
+        protected void afterExecute(Runnable runnable, Throwable thrown) {
+            super.afterExecute(runnable, thrown);
+            FitTrace.endAll();
+        }
+    }
+
+    private static class QueryThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+        private final String prefix;
+
+        QueryThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, prefix + count.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.Process;
+
+import com.google.android.gms.common.api.Result;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-flight layer for Google Fit reads.
+ *
+ * While a read for a given key is in flight, later callers with the same key attach to it and receive
+ * the same Fit result instead of issuing a duplicate request. Only the raw Fit result is shared: every
+ * caller still builds its own WritableArray, because a bridge array can only be handed to JS once.
+ *
+ * Blocking reads run on their own threads, bounded by {@link #READ_TIMEOUT_MINUTES} only, so no single
+ * caller's timeout or cancellation decides the result the others get. Each caller bounds its own wait instead.
+ */
+final class ReadCoalescer {
+
+    /**
+     * Timeout of a shared blocking read, use it for the {@code PendingResult.await} of the read.
+     */
+    static final long READ_TIMEOUT_MINUTES = 1;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    interface Read<T> {
+        T run();
+    }
+
+    // one thread per distinct read in flight, which the query and shard pools already bound
+    private static final ThreadPoolExecutor readExecutor = new ThreadPoolExecutor(
+            0,
+            Integer.MAX_VALUE,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            new ReadThreadFactory()
+    );
+
+    private final ConcurrentHashMap<String, FutureTask<?>> blockingReads = new ConcurrentHashMap<>();
+    private final Map<String, Task<?>> taskReads = new HashMap<>();
+    private final Executor callbacks;
+
+    ReadCoalescer(Executor callbacks) {
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * Builds a coalescing key out of everything that makes two reads identical.
+     */
+    static String key(Object... parts) {
+        StringBuilder builder = new StringBuilder();
+        for (Object part : parts) {
+            if (builder.length() > 0) {
+                builder.append('|');
+            }
+            builder.append(part);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Starts a blocking read, or joins the identical read that is already running, and waits for it as long as
+     * the query may. A result without success status is thrown as {@link IllegalStateException} to every caller.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Result> T await(final String key, QueryContext query, final Read<T> read) {
+        final FutureTask<T> task = new FutureTask<>(() -> {
+            T result = read.run();
+            if (!result.getStatus().isSuccess()) {
+                throw new IllegalStateException("There was an error reading data from Google Fit" + result.getStatus());
+            }
+            return result;
+        });
+        FutureTask<T> inFlight = (FutureTask<T>) blockingReads.putIfAbsent(key, task);
+
+        long start = PerfStats.begin();
+        boolean traced = FitTrace.isEnabled() && FitTrace.begin("fit:" + traceName(key));
+        if (inFlight == null) {
+            inFlight = task;
+            readExecutor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    blockingReads.remove(key, task);
+                }
+            });
+        }
+
+        try {
+            if (!query.hasDeadline()) {
+                // the read itself gives up after READ_TIMEOUT_MINUTES
+                return inFlight.get();
+            }
+            try {
+                return inFlight.get(query.waitMillis(READ_TIMEOUT_MINUTES, TimeUnit.MINUTES), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // only this caller's wait ends, the read goes on for the others
+                query.throwIfCancelled();
+                throw new CancellationException("Timed out waiting for " + key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            FitTrace.end(traced);
+            PerfStats.end(PerfStats.Stage.FIT, start);
+        }
+    }
+
+    /**
+     * Starts a Task based read, or returns the identical Task that has not completed yet.
+     */
+    @SuppressWarnings("unchecked")
+    <T> Task<T> join(final String key, Read<Task<T>> start) {
+        synchronized (taskReads) {
+            Task<T> inFlight = (Task<T>) taskReads.get(key);
+            if (inFlight != null && !inFlight.isComplete()) {
+                return inFlight;
+            }
+
+            final String traceName = FitTrace.isEnabled() ? "fit:" + traceName(key) : null;
+            final int cookie = traceName == null ? 0 : FitTrace.beginAsync(traceName);
+            final Task<T> task = start.run();
+            taskReads.put(key, task);
+            task.addOnCompleteListener(callbacks, new OnCompleteListener<T>() {
+                @Override
+                public void onComplete(Task<T> completed) {
+                    FitTrace.endAsync(traceName, cookie);
+                    synchronized (taskReads) {
+                        if (taskReads.get(key) == task) {
+                            taskReads.remove(key);
+                        }
+                    }
+                }
+            });
+            return task;
+        }
+    }
+
+    /**
+     * The read kind, the first part of the key. Keys are built with {@link #key} and start with a constant.
+     */
+    private static String traceName(String key) {
+        int end = key.indexOf('|');
+        return end < 0 ? key : key.substring(0, end);
+    }
+
+    private static class ReadThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "RNGoogleFit-read-" + count.getAndIncrement());
+        }
+    }
+}
@@ -1,28 +1,113 @@
 package com.reactnative.googlefit;
 
-import android.os.AsyncTask;
+import android.os.Process;
+import android.util.Log;
 
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.data.DataSet;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-class SaveDataHelper extends AsyncTask<Void, Void, Void> {
-  private ArrayList<DataSet> dataSets;
-  private GoogleFitManager googleFitManager;
+/**
+ * Inserts chunked data sets into Google Fit, up to {@link #MAX_CONCURRENT_INSERTS} at a time, on a small
+ * pool of its own. Every insert blocks its thread for up to a minute, so they stay off the query pool and a
+ * bulk import never holds up reads.
+ */
+final class SaveDataHelper {
 
-  SaveDataHelper(ArrayList<DataSet> dataSets, GoogleFitManager googleFitManager) {
-    this.dataSets = dataSets;
-    this.googleFitManager = googleFitManager;
+  interface ChunkListener {
+    /**
+     * Called on the inserting thread once per chunk, in the order the inserts finish.
+     */
+    void onChunk(int index, boolean success);
   }
 
-  @Override
-  protected Void doInBackground(Void... params) {
-    for (DataSet dataSet : this.dataSets) {
-      Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
-              .await(1, TimeUnit.MINUTES);
+  static final int MAX_CONCURRENT_INSERTS = 3;
+
+  private static final String TAG = "RNGoogleFit";
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private static final ThreadPoolExecutor executor;
+
+  static {
+    executor = new ThreadPoolExecutor(
+            MAX_CONCURRENT_INSERTS,
+            MAX_CONCURRENT_INSERTS,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new InsertThreadFactory()
+    );
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Inserts the data sets and blocks until all of them are done. Returns the number of failed inserts.
+   */
+  int insert(final GoogleApiClient client, final List<DataSet> dataSets, ChunkListener listener)
+          throws InterruptedException {
+    CompletionService<Integer> inserts = new ExecutorCompletionService<>(executor);
+
+    int submitted = 0;
+    int failed = 0;
+    for (int done = 0; done < dataSets.size(); done++) {
+      while (submitted < dataSets.size() && submitted - done < MAX_CONCURRENT_INSERTS) {
+        final int index = submitted++;
+        inserts.submit(() -> insert(client, dataSets.get(index)) ? index : -index - 1);
+      }
+
+      int result;
+      try {
+        result = inserts.take().get();
+      } catch (ExecutionException e) {
+        // insert() catches everything, so every chunk reaches the listener
+        throw new AssertionError(e.getCause());
+      }
+      boolean success = result >= 0;
+      if (!success) {
+        failed++;
+      }
+      listener.onChunk(success ? result : -result - 1, success);
+    }
+    return failed;
+  }
+
+  private static boolean insert(GoogleApiClient client, DataSet dataSet) {
+    try {
+      Status status = Fitness.HistoryApi.insertData(client, dataSet).await(1, TimeUnit.MINUTES);
+      if (status.isSuccess()) {
+        return true;
+      }
+      Log.w(TAG, "Insert of " + dataSet.getDataType().getName() + " failed: " + status);
+    } catch (Throwable e) {
+      // anything escaping here would lose the index of the chunk, which is then retried forever
+      Log.w(TAG, "Insert of " + dataSet.getDataType().getName() + " failed: " + e);
+    }
+    return false;
+  }
+
+  private static class InsertThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger(1);
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      return new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          runnable.run();
+        }
+      }, "RNGoogleFit-insert-" + count.getAndIncrement());
     }
-    return null;
   }
 }
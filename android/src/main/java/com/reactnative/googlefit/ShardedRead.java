@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a long time range into shards and reads them side by side.
+ *
+ * Google Fit stalls on single requests that return too much, e.g. aggregates above roughly 3,000 buckets
+ * or years of raw heart rate. Readers size the shards by the expected density of their data, see
+ * {@link #shardMillisForPoints} and {@link #shardMillisForBuckets}. The shards run on their own small pool,
+ * so a query worker waiting on its shards never blocks the shards of another query, and the results come
+ * back in range order. A query only queues its next shard when one of its shards finished, so the shards of
+ * concurrent queries take turns on the pool instead of a multi-year read holding it until all of its shards
+ * are done.
+ */
+final class ShardedRead {
+
+    interface ShardReader<T> {
+        T read(long start, long end);
+    }
+
+    static final int MAX_PARALLEL_SHARDS = 3;
+    // shards of one query that are queued or running at a time
+    private static final int MAX_SHARDS_PER_QUERY = MAX_PARALLEL_SHARDS;
+
+    // points a single shard should return at most
+    private static final long MAX_POINTS_PER_SHARD = 50000;
+    // buckets a single aggregate shard should return at most, below the ~3,000 where Fit stalls
+    private static final long MAX_BUCKETS_PER_SHARD = 2000;
+    private static final long MIN_SHARD_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor executor;
+
+    static {
+        executor = new ThreadPoolExecutor(
+                MAX_PARALLEL_SHARDS,
+                MAX_PARALLEL_SHARDS,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ShardThreadFactory()
+        );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private ShardedRead() {
+    }
+
+    /**
+     * Shard length for raw reads of data that comes in at about the given rate.
+     */
+    static long shardMillisForPoints(double pointsPerHour) {
+        long millis = (long) (MAX_POINTS_PER_SHARD / pointsPerHour * TimeUnit.HOURS.toMillis(1));
+        return Math.max(millis, MIN_SHARD_MILLIS);
+    }
+
+    /**
+     * Shard length for aggregate reads, a whole number of buckets so no bucket is split between shards.
+     */
+    static long shardMillisForBuckets(long bucketMillis) {
+        return Math.max(bucketMillis, 1) * MAX_BUCKETS_PER_SHARD;
+    }
+
+    static List<long[]> shards(long startTime, long endTime, long shardMillis) {
+        List<long[]> shards = new ArrayList<>();
+        for (long start = startTime; start < endTime; ) {
+            // compare the remaining length, start + shardMillis may overflow
+            long end = endTime - start <= shardMillis ? endTime : start + shardMillis;
+            shards.add(new long[]{start, end});
+            start = end;
+        }
+        if (shards.isEmpty()) {
+            shards.add(new long[]{startTime, endTime});
+        }
+        return shards;
+    }
+
+    /**
+     * Reads [startTime, endTime] shard by shard, at most {@link #MAX_SHARDS_PER_QUERY} at a time, and returns
+     * the shard results in range order. A range that fits into one shard is read on the calling thread.
+     * If a shard fails or the calling query is interrupted, the remaining shards are cancelled.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> List<T> read(long startTime, long endTime, long shardMillis, final ShardReader<T> reader) {
+        final List<long[]> shards = shards(startTime, endTime, shardMillis);
+        if (shards.size() == 1) {
+            List<T> results = new ArrayList<>(1);
+            results.add(reader.read(startTime, endTime));
+            return results;
+        }
+
+        // shards finish in any order, each one writes its slot
+        final Object[] results = new Object[shards.size()];
+        CompletionService<Void> completed = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> futures = new ArrayList<>(shards.size());
+
+        // the shard threads are not the query's worker, so the whole wait counts as Fit time of the query
+        long start = PerfStats.begin();
+        try {
+            int submitted = 0;
+            for (int done = 0; done < shards.size(); done++) {
+                while (submitted < shards.size() && submitted - done < MAX_SHARDS_PER_QUERY) {
+                    final int index = submitted++;
+                    futures.add(completed.submit(() -> {
+                        long[] shard = shards.get(index);
+                        results[index] = reader.read(shard[0], shard[1]);
+                        return null;
+                    }));
+                }
+                completed.take().get();
+            }
+            List<T> ordered = new ArrayList<>(results.length);
+            for (Object result : results) {
+                ordered.add((T) result);
+            }
+            return ordered;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for shards");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            PerfStats.end(PerfStats.Stage.FIT, start);
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static class ShardThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "RNGoogleFit-shard-" + count.getAndIncrement());
+        }
+    }
+}
@@ -68,16 +68,18 @@ public class SleepHistory {
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
-    public void getSleepData(double startDate, double endDate, final Promise promise) {
+    public void getSleepData(double startDate, double endDate, final QueryContext query, final Promise promise) {
         DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
         dateFormat.setTimeZone(TimeZone.getDefault());
 
+        boolean traced = FitTrace.begin("sleep:request");
         SessionReadRequest request = new SessionReadRequest.Builder()
                 .readSessionsFromAllApps()
                 .includeSleepSessions()
                 .read(DataType.TYPE_SLEEP_SEGMENT)
                 .setTimeInterval((long) startDate, (long) endDate, TimeUnit.MILLISECONDS)
                 .build();
+        FitTrace.end(traced);
 
         GoogleSignInOptionsExtension fitnessOptions =
                 FitnessOptions.builder()
@@ -85,11 +87,18 @@ public class SleepHistory {
                         .build();
         final  GoogleSignInAccount gsa = GoogleSignIn.getAccountForExtension(this.mReactContext, fitnessOptions);
 
-        Fitness.getSessionsClient(this.mReactContext, gsa)
-                .readSession(request)
-                .addOnSuccessListener(new OnSuccessListener<SessionReadResponse>() {
+        googleFitManager.getReadCoalescer().join(
+                ReadCoalescer.key("sleep", (long) startDate, (long) endDate),
+                () -> Fitness.getSessionsClient(mReactContext, gsa).readSession(request))
+                .addOnSuccessListener(googleFitManager.getQueryExecutor().callbacks(), new OnSuccessListener<SessionReadResponse>() {
                     @Override
                     public void onSuccess(SessionReadResponse response) {
+                        googleFitManager.getQueryExecutor().finish(query);
+                        // the promise of a cancelled read was already rejected
+                        if (query.isCancelled()) {
+                            return;
+                        }
+                        boolean traced = FitTrace.begin("sleep:process");
                         List<Session> sleepSessions = response.getSessions()
                             .stream()
                             .filter(s -> s.getActivity().equals(FitnessActivities.SLEEP))
@@ -114,13 +123,15 @@ public class SleepHistory {
 
                             sleepSample.pushMap(sleepData);
                         }
-                        promise.resolve(sleepSample);
+                        FitTrace.end(traced);
+                        query.resolve(promise, sleepSample);
                     }
                 })
-                .addOnFailureListener(new OnFailureListener() {
+                .addOnFailureListener(googleFitManager.getQueryExecutor().callbacks(), new OnFailureListener() {
                     @Override
                     public void onFailure(@NonNull Exception e) {
-                        promise.reject(e);
+                        googleFitManager.getQueryExecutor().finish(query);
+                        query.reject(promise, e);
                     }
                 });
     }
@@ -188,9 +199,11 @@ public class SleepHistory {
         Fitness.getSessionsClient(this.mReactContext, GoogleSignIn.getAccountForExtension(this.mReactContext, fitnessOptions))
                 .insertSession(request)
                 .addOnSuccessListener(
+                        googleFitManager.getQueryExecutor().callbacks(),
                         unused -> promise.resolve(true)
                 )
                 .addOnFailureListener(
+                        googleFitManager.getQueryExecutor().callbacks(),
                         e -> promise.resolve(e));
     }
 }
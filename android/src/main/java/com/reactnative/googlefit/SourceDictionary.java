@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of the distinct data sources of a response, so samples can refer to them by index.
+ *
+ * Used by the {@code columnar} format (sources as stream ids) and the {@code dictionary} format, where
+ * the source metadata that {@link HelperUtil#processDataSet} puts on every sample is emitted only once.
+ */
+final class SourceDictionary {
+
+    static final String[] SOURCE_KEYS = {
+            "dataSourceId",
+            "originDataSourceId",
+            "appPackageName",
+            "appName",
+            "deviceUid",
+            "deviceManufacturer",
+            "deviceModel",
+            "deviceType"
+    };
+
+    private final Map<String, Integer> indexes = new LinkedHashMap<>();
+    private final List<Map<String, Object>> descriptors = new ArrayList<>();
+
+    /**
+     * Returns the index of the source with the given id, adding it with the given metadata if it is new.
+     */
+    int indexOf(String id, Map<String, Object> descriptor) {
+        Integer index = indexes.get(id);
+        if (index == null) {
+            index = descriptors.size();
+            indexes.put(id, index);
+            descriptors.add(descriptor);
+        }
+        return index;
+    }
+
+    int indexOf(String id) {
+        return indexOf(id, null);
+    }
+
+    WritableArray toIdArray() {
+        WritableArray ids = Arguments.createArray();
+        for (String id : indexes.keySet()) {
+            ids.pushString(id);
+        }
+        return ids;
+    }
+
+    WritableArray toWritableArray() {
+        List<Object> sources = new ArrayList<>(descriptors.size());
+        for (Map<String, Object> descriptor : descriptors) {
+            sources.add(descriptor != null ? descriptor : new HashMap<String, Object>());
+        }
+        return Arguments.makeNativeArray(sources);
+    }
+
+    /**
+     * Builds the {@code format: 'dictionary'} response: {@code {sources, samples}}, where each sample keeps
+     * its own fields and refers to its source metadata through {@code sourceIndex}.
+     */
+    @SuppressWarnings("unchecked")
+    static WritableMap encode(List<Object> rows) {
+        SourceDictionary dictionary = new SourceDictionary();
+        List<Object> samples = new ArrayList<>(rows.size());
+
+        for (Object item : rows) {
+            Map<String, Object> row = (Map<String, Object>) item;
+            Map<String, Object> sample = new HashMap<>(row);
+            Map<String, Object> descriptor = new HashMap<>();
+            for (String key : SOURCE_KEYS) {
+                if (sample.containsKey(key)) {
+                    descriptor.put(key, sample.remove(key));
+                }
+            }
+
+            if (!descriptor.isEmpty()) {
+                String id = descriptor.get("dataSourceId") + "|" + descriptor.get("originDataSourceId");
+                sample.put("sourceIndex", dictionary.indexOf(id, descriptor));
+            }
+            samples.add(sample);
+        }
+
+        WritableMap result = Arguments.createMap();
+        result.putArray("sources", dictionary.toWritableArray());
+        result.putArray("samples", Arguments.makeNativeArray(samples));
+        return result;
+    }
+}
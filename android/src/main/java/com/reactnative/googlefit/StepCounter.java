@@ -12,6 +12,8 @@
 package com.reactnative.googlefit;
 
 import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -27,22 +29,57 @@ import com.google.android.gms.fitness.data.DataPoint;
 import com.google.android.gms.fitness.data.DataSource;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.Field;
-import com.google.android.gms.fitness.data.Value;
 import com.google.android.gms.fitness.request.DataSourcesRequest;
 import com.google.android.gms.fitness.request.OnDataPointListener;
 import com.google.android.gms.fitness.request.SensorRequest;
 import com.google.android.gms.fitness.result.DataSourcesResult;
 
+import java.util.Calendar;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Live steps from the Google Fit step delta sensor.
+ *
+ * The deltas are summed natively into a total for the session, i.e. since {@link #findFitnessDataSources} was
+ * called, and for the current local day. At most one {@code StepChangedEvent} is sent per emit interval,
+ * carrying the steps since the previous event in {@code steps} and {@code delta} and both totals.
+ */
 public class StepCounter implements OnDataPointListener {
 
+    static final long DEFAULT_SAMPLING_RATE_MILLIS = 3000;
+    static final long DEFAULT_EMIT_INTERVAL_MILLIS = 3000;
+
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
     private Activity activity;
+    // the listener runs on the main thread, so the emits are scheduled there as well
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private long samplingRateMillis = DEFAULT_SAMPLING_RATE_MILLIS;
+    private long emitIntervalMillis = DEFAULT_EMIT_INTERVAL_MILLIS;
+    // guarded by this
+    private boolean registered;
+    // source and sampling rate of the sensor request that was added, null and 0 before
+    @Nullable
+    private DataSource dataSource;
+    private long listenerRateMillis;
+    private long sessionTotal;
+    private long dayTotal;
+    private long dayStart;
+    private long delta;
+    private long lastStepTime;
+    private boolean pending;
+    private long lastEmit;
 
     private static final String TAG = "StepCounter";
 
+    private final Runnable emit = new Runnable() {
+        @Override
+        public void run() {
+            emit();
+        }
+    };
+
 
     public StepCounter(ReactContext reactContext, GoogleFitManager googleFitManager, Activity activity) {
         this.mReactContext = reactContext;
@@ -51,6 +88,43 @@ public class StepCounter implements OnDataPointListener {
     }
 
     public void findFitnessDataSources() {
+        findFitnessDataSources(DEFAULT_SAMPLING_RATE_MILLIS, DEFAULT_EMIT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Starts a new session. Fit delivers deltas about every {@code samplingRateMillis}, JS gets at most one
+     * event per {@code emitIntervalMillis}. While already listening, a new sampling rate re-adds the listener.
+     */
+    public void findFitnessDataSources(long samplingRateMillis, long emitIntervalMillis) {
+        final DataSource current;
+        synchronized (this) {
+            this.samplingRateMillis = Math.max(samplingRateMillis, 1);
+            this.emitIntervalMillis = Math.max(emitIntervalMillis, 0);
+            this.sessionTotal = 0;
+            this.delta = 0;
+            if (registered) {
+                // the emit interval applies right away, the sampling rate only with a new sensor request;
+                // a listener that is still being added picks up the new rate itself
+                if (dataSource == null || listenerRateMillis == this.samplingRateMillis) {
+                    return;
+                }
+                current = dataSource;
+            } else {
+                registered = true;
+                current = null;
+            }
+        }
+
+        if (current != null) {
+            Fitness.SensorsApi.remove(googleFitManager.getGoogleApiClient(), this)
+                    .setResultCallback(new ResultCallback<Status>() {
+                        @Override
+                        public void onResult(Status status) {
+                            registerFitnessDataListener(current, DataType.TYPE_STEP_COUNT_DELTA);
+                        }
+                    });
+            return;
+        }
 
         DataSourcesRequest dataSourceRequest = new DataSourcesRequest.Builder()
                 .setDataTypes(DataType.TYPE_STEP_COUNT_DELTA, DataType.TYPE_STEP_COUNT_CUMULATIVE)
@@ -63,12 +137,16 @@ public class StepCounter implements OnDataPointListener {
                 for (DataSource dataSource : dataSourcesResult.getDataSources()) {
                     DataType type = dataSource.getDataType();
 
-                    if (DataType.TYPE_STEP_COUNT_DELTA.equals(type)
-                            || DataType.TYPE_STEP_COUNT_CUMULATIVE.equals(type)) {
+                    // one delta source only, a second one or the cumulative count would count the same steps again
+                    if (DataType.TYPE_STEP_COUNT_DELTA.equals(type)) {
                         Log.i(TAG, "Register Fitness Listener: " + type);
-                        registerFitnessDataListener(dataSource, type);//DataType.TYPE_STEP_COUNT_DELTA);
+                        registerFitnessDataListener(dataSource, type);
+                        return;
                     }
                 }
+                synchronized (StepCounter.this) {
+                    registered = false;
+                }
             }
         };
 
@@ -77,11 +155,17 @@ public class StepCounter implements OnDataPointListener {
     }
 
     private void registerFitnessDataListener(DataSource dataSource, DataType dataType) {
+        long samplingRate;
+        synchronized (this) {
+            samplingRate = samplingRateMillis;
+            this.dataSource = dataSource;
+            listenerRateMillis = samplingRate;
+        }
 
         SensorRequest request = new SensorRequest.Builder()
                 .setDataSource(dataSource)
                 .setDataType(dataType)
-                .setSamplingRate(3, TimeUnit.SECONDS)
+                .setSamplingRate(samplingRate, TimeUnit.MILLISECONDS)
                 .build();
 
         Fitness.SensorsApi.add(googleFitManager.getGoogleApiClient(), request, this)
@@ -90,6 +174,12 @@ public class StepCounter implements OnDataPointListener {
                     public void onResult(Status status) {
                         if (status.isSuccess()) {
                             Log.i(TAG, "SensorApi successfully added");
+                        } else {
+                            synchronized (StepCounter.this) {
+                                registered = false;
+                                StepCounter.this.dataSource = null;
+                                listenerRateMillis = 0;
+                            }
                         }
                     }
                 });
@@ -98,31 +188,93 @@ public class StepCounter implements OnDataPointListener {
 
     @Override
     public void onDataPoint(DataPoint dataPoint) {
-        DataType type = dataPoint.getDataType();
-        Log.i(TAG, "Detected DataPoint type: " + type);
-
-        for (final Field field : type.getFields()) {
-            final Value value = dataPoint.getValue(field);
-            Log.i(TAG, "Detected DataPoint field: " + field.getName());
-            Log.i(TAG, "Detected DataPoint value: " + value);
+        long start = MainThreadMonitor.begin();
+        if (DataType.TYPE_STEP_COUNT_DELTA.equals(dataPoint.getDataType())) {
+            add(dataPoint.getValue(Field.FIELD_STEPS).asInt(), dataPoint.getEndTime(TimeUnit.MILLISECONDS));
+        }
+        MainThreadMonitor.end("stepCounter", start);
+    }
 
+    /**
+     * {@code {sessionTotal, dayTotal, timestamp}} of the steps received so far, without a Fit read.
+     */
+    public synchronized WritableMap getLiveStepTotal() {
+        rollOver(System.currentTimeMillis());
+        WritableMap map = Arguments.createMap();
+        map.putDouble("sessionTotal", sessionTotal);
+        map.putDouble("dayTotal", dayTotal);
+        map.putDouble("timestamp", lastStepTime);
+        return map;
+    }
 
-       /*     activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    Toast.makeText(mReactContext.getApplicationContext(), "Field: " + field.getName() + " Value: " + value, Toast.LENGTH_SHORT).show();
-                }
-            });*/
+    void unregistered() {
+        synchronized (this) {
+            registered = false;
+            dataSource = null;
+            listenerRateMillis = 0;
+            pending = false;
+        }
+        handler.removeCallbacks(emit);
+    }
 
-            if(type.equals(DataType.TYPE_STEP_COUNT_DELTA)) {
-                WritableMap map = Arguments.createMap();
-                map.putDouble("steps", value.asInt());
-                sendEvent(this.mReactContext, "StepChangedEvent", map);
+    private void add(int steps, long time) {
+        long delay;
+        synchronized (this) {
+            rollOver(time);
+            sessionTotal += steps;
+            dayTotal += steps;
+            delta += steps;
+            lastStepTime = Math.max(lastStepTime, time);
+            googleFitManager.getTodaySteps().add(TodaySteps.SOURCE_FIT, steps, time);
+            if (pending) {
+                return;
             }
+            pending = true;
+            delay = lastEmit + emitIntervalMillis - System.currentTimeMillis();
+        }
+        if (delay > 0) {
+            handler.postDelayed(emit, delay);
+        } else {
+            emit();
+        }
+    }
 
+    private void rollOver(long time) {
+        long day = startOfDay(time);
+        if (day > dayStart) {
+            dayStart = day;
+            dayTotal = 0;
         }
     }
 
+    private void emit() {
+        WritableMap map = Arguments.createMap();
+        synchronized (this) {
+            if (!pending) {
+                return;
+            }
+            pending = false;
+            lastEmit = System.currentTimeMillis();
+            rollOver(lastEmit);
+            map.putDouble("steps", delta);
+            map.putDouble("delta", delta);
+            map.putDouble("sessionTotal", sessionTotal);
+            map.putDouble("dayTotal", dayTotal);
+            map.putDouble("timestamp", lastStepTime);
+            delta = 0;
+        }
+        sendEvent(this.mReactContext, "StepChangedEvent", map);
+    }
+
+    private static long startOfDay(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTimeInMillis();
+    }
 
     private void sendEvent(ReactContext reactContext,
                            String eventName,
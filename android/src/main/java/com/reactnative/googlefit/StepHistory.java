@@ -41,6 +41,8 @@ import com.google.android.gms.fitness.result.DataReadResult;
 import com.google.android.gms.fitness.data.Device;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 
 import java.text.DateFormat;
 import java.text.Format;
@@ -52,6 +54,7 @@ import java.util.concurrent.TimeUnit;
 import java.text.SimpleDateFormat;
 import java.util.TimeZone;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class StepHistory {
@@ -60,6 +63,7 @@ public class StepHistory {
     private GoogleFitManager googleFitManager;
 
     private static final String TAG = "RNGoogleFit";
+    private static final String CACHE_KEY_PREFIX = "steps:";
 
     public StepHistory(ReactContext reactContext, GoogleFitManager googleFitManager){
         this.mReactContext = reactContext;
@@ -68,24 +72,27 @@ public class StepHistory {
 
     public void getUserInputSteps(long startTime, long endTime, final Callback successCallback) {
 
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-        dateFormat.setTimeZone(TimeZone.getDefault());
-
-        Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
-        Log.i(TAG, "Range End: " + dateFormat.format(endTime));
+        if (FitLog.isLoggable(Log.INFO)) {
+            Log.i(TAG, "Range Start: " + FitLog.time(startTime));
+            Log.i(TAG, "Range End: " + FitLog.time(endTime));
+        }
 
+        boolean traced = FitTrace.begin("userInputSteps:request");
         final DataReadRequest readRequest = new DataReadRequest.Builder()
             .read(DataType.TYPE_STEP_COUNT_DELTA)
             .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
             .build();
+        FitTrace.end(traced);
 
-        DataReadResult dataReadResult =
-            Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
+        DataReadResult dataReadResult = googleFitManager.getReadCoalescer().await(
+            ReadCoalescer.key("userInputSteps", startTime, endTime), QueryContext.DEFAULT,
+            () -> Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(ReadCoalescer.READ_TIMEOUT_MINUTES, TimeUnit.MINUTES));
 
         DataSet stepData = dataReadResult.getDataSet(DataType.TYPE_STEP_COUNT_DELTA);
 
         int userInputSteps = 0;
 
+        traced = FitTrace.begin("userInputSteps:process");
         for (DataPoint dp : stepData.getDataPoints()) {
             for(Field field : dp.getDataType().getFields()) {
                 if("user_input".equals(dp.getOriginalDataSource().getStreamName())){
@@ -94,19 +101,18 @@ public class StepHistory {
                 }
             }
         }
+        FitTrace.end(traced);
 
         successCallback.invoke(userInputSteps);
     }
 
     public void aggregateDataByDate(long startTime, long endTime, int bucketInterval,
-                                    String bucketUnit, final Promise promise) {
-
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-        dateFormat.setTimeZone(TimeZone.getDefault());
+                                    String bucketUnit, final QueryContext query, final Promise promise) {
 
-
-        Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
-        Log.i(TAG, "Range End: " + dateFormat.format(endTime));
+        if (FitLog.isLoggable(Log.INFO)) {
+            Log.i(TAG, "Range Start: " + FitLog.time(startTime));
+            Log.i(TAG, "Range End: " + FitLog.time(endTime));
+        }
 
         final WritableArray results = Arguments.createArray();
 
@@ -143,6 +149,9 @@ public class StepHistory {
         );
 
         final AtomicInteger dataSourcesToLoad = new AtomicInteger(dataSources.size());
+        final AggregateCache cache = AggregateCache.getInstance(mReactContext);
+        final int cacheGeneration = cache.generation();
+        long bucketMillis = HelperUtil.processBucketUnit(bucketUnit).toMillis(bucketInterval);
 
         for (DataSource dataSource : dataSources) {
             final WritableMap source = Arguments.createMap();
@@ -150,9 +159,11 @@ public class StepHistory {
             DataType type = dataSource.getDataType();
             Device device = dataSource.getDevice();
 
-            Log.i(TAG, "DataSource:");
-
-            Log.i(TAG, "  + StreamID  : " + dataSource.getStreamIdentifier());
+            boolean logSource = FitLog.isLoggable(Log.INFO);
+            if (logSource) {
+                Log.i(TAG, "DataSource:");
+                Log.i(TAG, "  + StreamID  : " + dataSource.getStreamIdentifier());
+            }
             source.putString("id", dataSource.getStreamIdentifier());
 
             if (dataSource.getAppPackageName() != null) {
@@ -167,10 +178,12 @@ public class StepHistory {
                 source.putNull("stream");
             }
 
-            Log.i(TAG, "  + Type      : " + type);
             source.putString("type", type.getName());
 
-            Log.i(TAG, "  + Device    : " + device);
+            if (logSource) {
+                Log.i(TAG, "  + Type      : " + type);
+                Log.i(TAG, "  + Device    : " + device);
+            }
             if (device != null) {
                 source.putString("deviceUid", device.getUid());
                 source.putString("deviceManufacturer", device.getManufacturer());
@@ -179,29 +192,22 @@ public class StepHistory {
             }
 
             //if (!DataType.TYPE_STEP_COUNT_DELTA.equals(type)) continue;
-            DataReadRequest readRequest;
+            final String cacheKey = CACHE_KEY_PREFIX + dataSource.getStreamIdentifier();
+            final DataType aggregateType;
+            final List<AggregateCache.Segment> segments;
 
             List<DataType> aggregateDataTypeList = DataType.getAggregatesForInput(type);
             if (aggregateDataTypeList.size() > 0) {
-                DataType aggregateType = aggregateDataTypeList.get(0);
-                Log.i(TAG, "  + Aggregate : " + aggregateType);
-
-                //Check how many steps were walked and recorded in specified days
-                readRequest = new DataReadRequest.Builder()
-                        .aggregate(dataSource
-                            //DataType.TYPE_STEP_COUNT_DELTA
-                            ,
-                            //DataType.AGGREGATE_STEP_COUNT_DELTA
-                            aggregateType)
-                        .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
-                        .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                        .build();
+                aggregateType = aggregateDataTypeList.get(0);
+                if (logSource) {
+                    Log.i(TAG, "  + Aggregate : " + aggregateType);
+                }
+
+                // closed buckets come from the cache, only the gaps between them go to Google Fit
+                segments = cache.plan(cacheKey, startTime, endTime, bucketMillis);
             } else {
-                readRequest = new DataReadRequest.Builder()
-                        .read(dataSource)
-                        //.bucketByTime(12, TimeUnit.HOURS) // Half-day resolution
-                        .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                        .build();
+                aggregateType = null;
+                segments = Collections.singletonList(new AggregateCache.Segment(startTime, endTime, null));
             }
 
             GoogleSignInOptionsExtension fitnessOptions =
@@ -212,52 +218,132 @@ public class StepHistory {
             GoogleSignInAccount googleSignInAccount =
                     GoogleSignIn.getAccountForExtension(this.mReactContext, fitnessOptions);
 
-            Fitness.getHistoryClient(this.mReactContext, googleSignInAccount)
-                .readData(readRequest)
-                    .addOnSuccessListener(new OnSuccessListener<DataReadResponse>() {
+            List<Task<DataReadResponse>> reads = new ArrayList<>();
+            for (AggregateCache.Segment segment : segments) {
+                if (segment.isGap()) {
+                    boolean traced = FitTrace.begin("steps:request");
+                    DataReadRequest readRequest = buildReadRequest(dataSource, aggregateType,
+                            segment.start, segment.end, bucketInterval, bucketUnit);
+                    FitTrace.end(traced);
+                    reads.add(googleFitManager.getReadCoalescer().join(
+                            ReadCoalescer.key("steps", dataSource.getStreamIdentifier(), segment.start, segment.end, bucketInterval, bucketUnit),
+                            () -> Fitness.getHistoryClient(mReactContext, googleSignInAccount).readData(readRequest)));
+                }
+            }
+
+            if (reads.isEmpty()) {
+                pushSourceSteps(results, source, stitch(segments, Collections.emptyList(), null), query, dataSourcesToLoad, promise);
+                continue;
+            }
+
+            Tasks.whenAllSuccess(reads)
+                    .addOnSuccessListener(googleFitManager.getQueryExecutor().callbacks(), new OnSuccessListener<List<Object>>() {
                         @Override
-                        public void onSuccess(DataReadResponse dataReadResponse) {
-                            Log.i(TAG, "onSuccess()");
-                            WritableArray steps = Arguments.createArray();
-
-                            //Used for aggregated data
-                            if (dataReadResponse.getBuckets().size() > 0) {
-                                Log.i(TAG, "  +++ Number of buckets: " + dataReadResponse.getBuckets().size());
-                                for (Bucket bucket : dataReadResponse.getBuckets()) {
-                                    List<DataSet> dataSets = bucket.getDataSets();
-                                    for (DataSet dataSet : dataSets) {
-                                        HelperUtil.processDataSet(mReactContext, TAG, dataSet, steps);
-                                    }
-                                }
+                        public void onSuccess(List<Object> responses) {
+                            // the promise of a cancelled read was already rejected
+                            if (query.isCancelled()) {
+                                return;
                             }
+                            final List<AggregateCache.Entry> entries = new ArrayList<>();
+                            ArrayList<Object> steps = stitch(segments, responses, entries);
 
-                            //Used for non-aggregated data
-                            if (dataReadResponse.getDataSets().size() > 0) {
-                                Log.i(TAG, "  +++ Number of returned DataSets: " + dataReadResponse.getDataSets().size());
-                                for (DataSet dataSet : dataReadResponse.getDataSets()) {
-                                    HelperUtil.processDataSet(mReactContext, TAG, dataSet, steps);
-                                }
+                            // keep the disk write off the callback threads, they only build responses
+                            if (aggregateType != null && !entries.isEmpty()) {
+                                googleFitManager.getQueryExecutor().execute(() -> cache.store(cacheKey, entries, cacheGeneration));
                             }
 
-                            WritableMap map = Arguments.createMap();
-                            map.putMap("source", source);
-                            map.putArray("steps", steps);
-                            results.pushMap(map);
-
-                            if (dataSourcesToLoad.decrementAndGet() <= 0) {
-                                promise.resolve(results);
-                            }
+                            pushSourceSteps(results, source, steps, query, dataSourcesToLoad, promise);
                         }
-                    }).addOnFailureListener(new OnFailureListener() {
+                    }).addOnFailureListener(googleFitManager.getQueryExecutor().callbacks(), new OnFailureListener() {
                         @Override
                         public void onFailure(@NonNull Exception e) {
                             Log.i(TAG, "onFailure()");
                             Log.i(TAG, "Error" + e);
-                            promise.reject(e);
+                            // the first failing source rejects, the others and a cancel are no-ops
+                            query.reject(promise, e);
+                            googleFitManager.getQueryExecutor().finish(query);
                     }
             });
 
         }
     }
 
+    private DataReadRequest buildReadRequest(DataSource dataSource, @Nullable DataType aggregateType,
+                                             long startTime, long endTime, int bucketInterval, String bucketUnit) {
+        if (aggregateType != null) {
+            //Check how many steps were walked and recorded in specified days
+            return new DataReadRequest.Builder()
+                    .aggregate(dataSource
+                        //DataType.TYPE_STEP_COUNT_DELTA
+                        ,
+                        //DataType.AGGREGATE_STEP_COUNT_DELTA
+                        aggregateType)
+                    .bucketByTime(bucketInterval, HelperUtil.processBucketUnit(bucketUnit))
+                    .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+        return new DataReadRequest.Builder()
+                .read(dataSource)
+                //.bucketByTime(12, TimeUnit.HOURS) // Half-day resolution
+                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Puts cached runs and freshly read gaps back together in range order. The responses are in gap order;
+     * the entries read from them are collected into {@code fetched} so they can be cached.
+     */
+    private ArrayList<Object> stitch(List<AggregateCache.Segment> segments, List<Object> responses,
+                                     @Nullable List<AggregateCache.Entry> fetched) {
+        boolean traced = FitTrace.begin("steps:process");
+        ArrayList<Object> steps = new ArrayList<>();
+        int gap = 0;
+        for (AggregateCache.Segment segment : segments) {
+            if (!segment.isGap()) {
+                steps.addAll(segment.items);
+                continue;
+            }
+
+            DataReadResponse dataReadResponse = (DataReadResponse) responses.get(gap++);
+            if (FitLog.isLoggable(Log.INFO)) {
+                Log.i(TAG, "  +++ Number of buckets: " + dataReadResponse.getBuckets().size());
+            }
+            List<AggregateCache.Entry> entries = AggregateCache.entries(
+                    dataReadResponse.getBuckets(), dataReadResponse.getDataSets(), segment.start, segment.end,
+                    (dataSet, out) -> HelperUtil.processDataSet(mReactContext, TAG, dataSet, out));
+            for (AggregateCache.Entry entry : entries) {
+                steps.addAll(entry.items);
+            }
+            if (fetched != null) {
+                fetched.addAll(entries);
+            }
+        }
+        FitTrace.end(traced);
+        return steps;
+    }
+
+    private void pushSourceSteps(WritableArray results, ReadableMap source, ArrayList<Object> steps,
+                                 QueryContext query, AtomicInteger dataSourcesToLoad, Promise promise) {
+        boolean traced = FitTrace.begin("steps:build");
+        WritableMap map = Arguments.createMap();
+        map.putMap("source", source);
+        if (query.isDailyRollup()) {
+            // only the daily totals cross the bridge, the buckets stay native
+            map.putArray("steps", Arguments.makeNativeArray(DailyRollup.byEndDate(steps, "steps")));
+        } else {
+            query.put(map, "steps", steps, "steps");
+        }
+        FitTrace.end(traced);
+
+        // cached sources finish on the query worker, fetched ones on the listener thread
+        synchronized (results) {
+            results.pushMap(map);
+        }
+
+        if (dataSourcesToLoad.decrementAndGet() <= 0) {
+            // no-op if the read was cancelled meanwhile, cancel() already rejected it
+            query.resolve(promise, results);
+            googleFitManager.getQueryExecutor().finish(query);
+        }
+    }
 }
@@ -13,14 +13,18 @@ package com.reactnative.googlefit;
 
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
-import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 
@@ -29,34 +33,65 @@ import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Live steps from the hardware step counter, without Google Fit.
+ *
+ * The sensor is registered with a max report latency, so the hardware FIFO batches the steps and the CPU
+ * is only woken once per latency instead of once per step. Events are handled on a background thread and
+ * coalesced: at most one {@code StepSensorChangedEvent} with the latest counter value is sent per emit interval.
+ * Every reading is also recorded in the {@link StepStore}, which turns the counter into steps per minute.
+ */
 public class StepSensor implements SensorEventListener {
 
-    private Activity activity;
+    static final long DEFAULT_EMIT_INTERVAL_MILLIS = 5000;
+
     private ReactContext mReactContext;
+    private final StepStore stepStore;
+    @Nullable
+    private final TodaySteps todaySteps;
     private SensorManager mSensorManager;
     private Sensor mStepCounter;
-    private long lastUpdate = 0;
-    private int delay;
+    private HandlerThread thread;
+    private Handler handler;
+    private long emitIntervalMillis;
+    // guarded by this: latest counter value, not yet sent if pending
+    private float steps;
+    private long timestamp;
+    private boolean pending;
+    private long lastEmit;
 
     private static final String TAG = "StepCounter";
 
-    public StepSensor(ReactContext reactContext, Activity activity) {
-        this.mReactContext = reactContext;
-        this.activity = activity;
+    private final Runnable emit = new Runnable() {
+        @Override
+        public void run() {
+            emit();
+        }
+    };
 
-        boolean stepCounter = hasStepCounter();
-        Log.i(TAG, "hasStepCounter: " + stepCounter);
+    public StepSensor(ReactContext reactContext) {
+        this(reactContext, (TodaySteps) null);
+    }
 
-        if(stepCounter) {
-            mSensorManager = (SensorManager) reactContext.getSystemService(reactContext.SENSOR_SERVICE);
+    StepSensor(ReactContext reactContext, @Nullable TodaySteps todaySteps) {
+        this.mReactContext = reactContext;
+        this.todaySteps = todaySteps;
+        this.stepStore = StepStore.getInstance(reactContext);
+
+        if (hasStepCounter()) {
+            mSensorManager = (SensorManager) reactContext.getSystemService(Context.SENSOR_SERVICE);
         }
     }
 
+    public StepSensor(ReactContext reactContext, Activity activity) {
+        this(reactContext);
+    }
+
     public boolean hasStepCounter() {
 
-        PackageManager pm = activity.getPackageManager();
+        PackageManager pm = mReactContext.getPackageManager();
 
         int currentApiVersion = Build.VERSION.SDK_INT;
         // Check that the device supports the step counter and detector sensors
@@ -67,46 +102,78 @@ public class StepSensor implements SensorEventListener {
     }
 
     public int start(int delay) {
-        List<Sensor> l = mSensorManager.getSensorList(Sensor.TYPE_ALL);
+        return start(delay, delay) ? 1 : 0;
+    }
 
-        this.delay = delay;
-        if ((mStepCounter = mSensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER)) != null) {
-            mSensorManager.registerListener(this, mStepCounter, SensorManager.SENSOR_DELAY_FASTEST);
-            return (1);
+    /**
+     * Starts counting. Steps are batched in hardware for up to {@code maxReportLatencyMillis} and sent to JS
+     * at most once per {@code emitIntervalMillis}. Returns false if the device has no step counter.
+     */
+    public synchronized boolean start(long emitIntervalMillis, long maxReportLatencyMillis) {
+        // the step counter and the batching registerListener overload both need KitKat
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT
+                || mSensorManager == null
+                || (mStepCounter = mSensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER)) == null) {
+            return false;
         }
-        return (0);
+        stop();
+
+        this.emitIntervalMillis = Math.max(emitIntervalMillis, 0);
+        this.thread = new HandlerThread("RNGoogleFit-sensor", Process.THREAD_PRIORITY_BACKGROUND);
+        this.thread.start();
+        this.handler = new Handler(thread.getLooper());
+
+        int maxReportLatencyUs = (int) Math.min(
+                TimeUnit.MILLISECONDS.toMicros(Math.max(maxReportLatencyMillis, 0)), Integer.MAX_VALUE);
+        // a step counter reports on change only, the rate is just an upper bound for the sensor hub
+        return mSensorManager.registerListener(
+                this, mStepCounter, SensorManager.SENSOR_DELAY_NORMAL, maxReportLatencyUs, handler);
     }
 
+    public synchronized void stop() {
+        if (handler == null) {
+            return;
+        }
+        mSensorManager.unregisterListener(this);
+        handler.removeCallbacks(emit);
+        thread.quit();
+        handler = null;
+        thread = null;
+        pending = false;
+    }
 
     @Override
     public void onSensorChanged(SensorEvent sensorEvent) {
-        Sensor mySensor = sensorEvent.sensor;
-
-        Log.i(TAG, "onSensorChanged");
-
-
-
-        if (mySensor.getType() == Sensor.TYPE_STEP_COUNTER) {
-            WritableMap map = Arguments.createMap();
-
-            long curTime = System.currentTimeMillis();
-            //i++;
-            if ((curTime - lastUpdate) > delay) {
-                final Object o = sensorEvent.values[0];
-                Log.i("History", "Data point:" + sensorEvent.values[0]);
+        if (sensorEvent.sensor.getType() != Sensor.TYPE_STEP_COUNTER) {
+            return;
+        }
 
-                map.putDouble("steps", sensorEvent.values[0]);
-                sendEvent(this.mReactContext, "StepSensorChangedEvent", map);
+        // event timestamps are nanoseconds since boot, the step was taken then and not when the FIFO was drained
+        long time = System.currentTimeMillis()
+                - TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() - sensorEvent.timestamp);
+        long recorded = stepStore.record((long) sensorEvent.values[0], time);
+        if (todaySteps != null) {
+            todaySteps.add(TodaySteps.SOURCE_SENSOR, recorded, time);
+        }
 
-                activity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Toast.makeText(mReactContext.getApplicationContext(), "" + o, Toast.LENGTH_SHORT).show();
-                    }
-                });
-                lastUpdate = curTime;
+        long delay;
+        synchronized (this) {
+            if (handler == null) {
+                return;
+            }
+            steps = sensorEvent.values[0];
+            timestamp = time;
+            if (pending) {
+                return;
+            }
+            pending = true;
+            delay = lastEmit + emitIntervalMillis - SystemClock.elapsedRealtime();
+            if (delay > 0) {
+                handler.postDelayed(emit, delay);
+                return;
             }
         }
+        emit();
     }
 
     @Override
@@ -114,6 +181,26 @@ public class StepSensor implements SensorEventListener {
 
     }
 
+    private void emit() {
+        WritableMap map = Arguments.createMap();
+        synchronized (this) {
+            if (!pending) {
+                return;
+            }
+            pending = false;
+            lastEmit = SystemClock.elapsedRealtime();
+            map.putDouble("steps", steps);
+            map.putDouble("timestamp", timestamp);
+        }
+        map.putDouble("stepsToday", stepStore.getStepsToday());
+        try {
+            sendEvent(this.mReactContext, "StepSensorChangedEvent", map);
+        } catch (RuntimeException e) {
+            // the catalyst instance is gone, the next start registers again
+            Log.w(TAG, "Could not send live steps: " + e);
+        }
+    }
+
     private void sendEvent(ReactContext reactContext,
                            String eventName,
                            @Nullable WritableMap params) {
@@ -0,0 +1,255 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.provider.Settings;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steps of the hardware step counter, persisted per minute.
+ *
+ * {@code TYPE_STEP_COUNTER} counts since boot, so the store keeps the last counter value and the boot it
+ * belongs to. Every reading adds the difference to the last one to the bucket of its minute. A reading below
+ * the last value, or on Android 7+ one with a different {@code BOOT_COUNT}, means the device was rebooted and
+ * the counter started over, so the whole reading counts. The wall clock is never used for this, it can be set
+ * or corrected at any time. Steps taken while nobody listened to the sensor show up in the minute they are
+ * first read.
+ *
+ * Native code, e.g. a widget, can read the totals without Google Fit or JS through {@link #getStepsToday}.
+ */
+public final class StepStore extends SQLiteOpenHelper {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String DATABASE_NAME = "rngooglefit_steps.db";
+    // 2: the boot column holds Settings.Global.BOOT_COUNT instead of the boot time
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_MINUTES = "minutes";
+    private static final String COLUMN_MINUTE = "minute";
+    private static final String COLUMN_STEPS = "steps";
+
+    private static final String TABLE_COUNTER = "counter";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_VALUE = "value";
+    private static final String COLUMN_BOOT = "boot";
+
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // boot count before Android 7, or of a reading stored by an older version
+    private static final long UNKNOWN_BOOT = -1;
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(35);
+
+    private static StepStore instance;
+
+    private final Context context;
+
+    // guarded by this: last counter reading, loaded lazily
+    private boolean loaded;
+    private long counter = -1;
+    private long boot = UNKNOWN_BOOT;
+    // guarded by this: total of today, -1 if not loaded
+    private long todayStart;
+    private long todaySteps = -1;
+
+    public static synchronized StepStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new StepStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private StepStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MINUTES + " ("
+                + COLUMN_MINUTE + " INTEGER PRIMARY KEY, "
+                + COLUMN_STEPS + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_COUNTER + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_VALUE + " INTEGER NOT NULL, "
+                + COLUMN_BOOT + " INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // step history is user data, future versions have to migrate it
+        if (oldVersion < 2) {
+            // the stored boot time cannot be turned into a boot count, the next reading compares values only
+            db.execSQL("UPDATE " + TABLE_COUNTER + " SET " + COLUMN_BOOT + " = " + UNKNOWN_BOOT);
+        }
+    }
+
+    /**
+     * Records a counter reading taken at the given wall clock time. Returns the steps it added.
+     */
+    synchronized long record(long value, long time) {
+        try {
+            long currentBoot = bootCount();
+            load();
+            long steps;
+            if (counter < 0) {
+                // nothing to compare to, the steps since boot may have been taken on any day
+                steps = 0;
+            } else if (value < counter
+                    || (currentBoot != UNKNOWN_BOOT && boot != UNKNOWN_BOOT && currentBoot != boot)) {
+                // rebooted, the counter started over
+                steps = value;
+            } else {
+                steps = value - counter;
+            }
+
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                if (steps > 0) {
+                    long minute = time - time % MINUTE_MILLIS;
+                    db.execSQL("INSERT OR IGNORE INTO " + TABLE_MINUTES + " VALUES (?, 0)", new Object[]{minute});
+                    db.execSQL("UPDATE " + TABLE_MINUTES + " SET " + COLUMN_STEPS + " = " + COLUMN_STEPS
+                            + " + ? WHERE " + COLUMN_MINUTE + " = ?", new Object[]{steps, minute});
+                }
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_ID, 0);
+                values.put(COLUMN_VALUE, value);
+                values.put(COLUMN_BOOT, currentBoot);
+                db.insertWithOnConflict(TABLE_COUNTER, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            counter = value;
+            boot = currentBoot;
+            if (steps > 0 && todaySteps >= 0 && time >= todayStart) {
+                todaySteps += steps;
+            }
+            return steps;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Step store write failed: " + e);
+            return 0;
+        }
+    }
+
+    /**
+     * Steps counted since the start of the current local day.
+     */
+    public synchronized long getStepsToday() {
+        long start = startOfDay(System.currentTimeMillis());
+        if (todaySteps < 0 || start != todayStart) {
+            todayStart = start;
+            todaySteps = getSteps(start, Long.MAX_VALUE);
+            prune(start - RETENTION_MILLIS);
+        }
+        return todaySteps;
+    }
+
+    /**
+     * Steps counted in the minutes that start within [startTime, endTime).
+     */
+    public long getSteps(long startTime, long endTime) {
+        try {
+            Cursor cursor = getReadableDatabase().rawQuery(
+                    "SELECT SUM(" + COLUMN_STEPS + ") FROM " + TABLE_MINUTES
+                            + " WHERE " + COLUMN_MINUTE + " >= ? AND " + COLUMN_MINUTE + " < ?",
+                    new String[]{String.valueOf(startTime), String.valueOf(endTime)});
+            try {
+                return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Step store read failed: " + e);
+            return 0;
+        }
+    }
+
+    /**
+     * {@code [{startDate, endDate, steps}]} of the minutes with steps within [startTime, endTime).
+     */
+    WritableArray getSamples(long startTime, long endTime) {
+        WritableArray samples = Arguments.createArray();
+        Cursor cursor = getReadableDatabase().query(
+                TABLE_MINUTES,
+                new String[]{COLUMN_MINUTE, COLUMN_STEPS},
+                COLUMN_MINUTE + " >= ? AND " + COLUMN_MINUTE + " < ?",
+                new String[]{String.valueOf(startTime), String.valueOf(endTime)},
+                null, null, COLUMN_MINUTE);
+        try {
+            while (cursor.moveToNext()) {
+                WritableMap sample = Arguments.createMap();
+                sample.putDouble("startDate", cursor.getLong(0));
+                sample.putDouble("endDate", cursor.getLong(0) + MINUTE_MILLIS);
+                sample.putDouble("steps", cursor.getLong(1));
+                samples.pushMap(sample);
+            }
+        } finally {
+            cursor.close();
+        }
+        return samples;
+    }
+
+    private long bootCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return UNKNOWN_BOOT;
+        }
+        return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, (int) UNKNOWN_BOOT);
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        Cursor cursor = getReadableDatabase().query(
+                TABLE_COUNTER, new String[]{COLUMN_VALUE, COLUMN_BOOT}, null, null, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                counter = cursor.getLong(0);
+                boot = cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        loaded = true;
+    }
+
+    private void prune(long before) {
+        try {
+            getWritableDatabase().delete(TABLE_MINUTES, COLUMN_MINUTE + " < ?", new String[]{String.valueOf(before)});
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Step store prune failed: " + e);
+        }
+    }
+
+    private static long startOfDay(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTimeInMillis();
+    }
+}
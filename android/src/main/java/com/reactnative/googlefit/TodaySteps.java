@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.result.DailyTotalResult;
+
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Today's step total from memory: the last daily total synced from Google Fit plus the live steps received since.
+ *
+ * Live steps come from {@link StepCounter} (Fit sensor deltas) and {@link StepSensor} (hardware counter). Both
+ * see the same walking, so per source the steps after the sync are summed and the larger sum counts. A read
+ * older than {@link #RECONCILE_MILLIS} starts a daily total read in the background; once it returns, the live
+ * steps up to the start of that read are covered by Fit and dropped. Until the first daily total of the day
+ * was read the total is unknown, and {@code steps} is null.
+ */
+final class TodaySteps {
+
+    static final String SOURCE_FIT = "fit";
+    static final String SOURCE_SENSOR = "sensor";
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final long RECONCILE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final class Delta {
+        final String source;
+        final long time;
+        final long steps;
+
+        Delta(String source, long time, long steps) {
+            this.source = source;
+            this.time = time;
+            this.steps = steps;
+        }
+    }
+
+    // all guarded by this
+    private long dayStart;
+    private long syncedSteps;
+    // time the synced total was read at, 0 if there was no sync today
+    private long syncedAt;
+    private final ArrayDeque<Delta> deltas = new ArrayDeque<>();
+    private final Map<String, Long> live = new HashMap<>();
+    private boolean reconciling;
+    // start of the last reconcile, failed ones are retried after the same interval
+    private long reconciledAt;
+    // bumped by reset(), a reconcile that started before does not apply its total
+    private int generation;
+
+    /**
+     * Adds live steps taken at the given time.
+     */
+    synchronized void add(String source, long steps, long time) {
+        rollOver(System.currentTimeMillis());
+        if (steps <= 0 || time < dayStart || time <= syncedAt) {
+            return;
+        }
+        deltas.add(new Delta(source, time, steps));
+        Long current = live.get(source);
+        live.put(source, (current == null ? 0 : current) + steps);
+    }
+
+    /**
+     * Forgets everything, on sign out: the synced total and the live steps belong to the signed out account.
+     */
+    synchronized void reset() {
+        generation++;
+        dayStart = 0;
+        syncedSteps = 0;
+        syncedAt = 0;
+        deltas.clear();
+        live.clear();
+        reconciledAt = 0;
+    }
+
+    /**
+     * {@code {steps, synced, live, syncedAt}} from memory, {@code steps} is null until a daily total was synced. Starts a background reconcile with Fit if the synced
+     * total is stale and a client is given.
+     */
+    WritableMap get(GoogleApiClient client, Executor executor) {
+        WritableMap map = Arguments.createMap();
+        boolean reconcile;
+        int started;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            rollOver(now);
+            long liveSteps = liveSteps();
+            if (syncedAt > 0) {
+                map.putDouble("steps", syncedSteps + liveSteps);
+            } else {
+                // the live steps alone may be far below the day's total
+                map.putNull("steps");
+            }
+            map.putDouble("synced", syncedSteps);
+            map.putDouble("live", liveSteps);
+            map.putDouble("syncedAt", syncedAt);
+
+            reconcile = !reconciling && now - Math.max(syncedAt, reconciledAt) > RECONCILE_MILLIS
+                    && client != null && client.isConnected();
+            if (reconcile) {
+                reconciling = true;
+                reconciledAt = now;
+            }
+            started = generation;
+        }
+        if (reconcile) {
+            reconcile(client, executor, started);
+        }
+        return map;
+    }
+
+    private void reconcile(final GoogleApiClient client, Executor executor, final int started) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long readAt = System.currentTimeMillis();
+                try {
+                    DailyTotalResult result = Fitness.HistoryApi
+                            .readDailyTotal(client, DataType.TYPE_STEP_COUNT_DELTA)
+                            .await(1, TimeUnit.MINUTES);
+                    if (result.getStatus().isSuccess()) {
+                        synced(started, readAt, total(result.getTotal()));
+                        return;
+                    }
+                    Log.w(TAG, "Reconciling today's steps failed: " + result.getStatus());
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Reconciling today's steps failed: " + e);
+                } finally {
+                    synchronized (TodaySteps.this) {
+                        reconciling = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized void synced(int started, long readAt, long steps) {
+        rollOver(readAt);
+        if (started != generation || readAt < syncedAt) {
+            return;
+        }
+        syncedSteps = steps;
+        syncedAt = readAt;
+        Iterator<Delta> iterator = deltas.iterator();
+        while (iterator.hasNext()) {
+            Delta delta = iterator.next();
+            if (delta.time <= readAt) {
+                live.put(delta.source, live.get(delta.source) - delta.steps);
+                iterator.remove();
+            }
+        }
+    }
+
+    private long liveSteps() {
+        long steps = 0;
+        for (long sourceSteps : live.values()) {
+            steps = Math.max(steps, sourceSteps);
+        }
+        return steps;
+    }
+
+    private void rollOver(long now) {
+        long day = startOfDay(now);
+        if (day <= dayStart) {
+            return;
+        }
+        dayStart = day;
+        syncedSteps = 0;
+        syncedAt = 0;
+        live.clear();
+        Iterator<Delta> iterator = deltas.iterator();
+        while (iterator.hasNext()) {
+            Delta delta = iterator.next();
+            if (delta.time < day) {
+                iterator.remove();
+            } else {
+                Long current = live.get(delta.source);
+                live.put(delta.source, (current == null ? 0 : current) + delta.steps);
+            }
+        }
+    }
+
+    private static long total(DataSet dataSet) {
+        long steps = 0;
+        if (dataSet != null) {
+            for (DataPoint dp : dataSet.getDataPoints()) {
+                steps += dp.getValue(Field.FIELD_STEPS).asInt();
+            }
+        }
+        return steps;
+    }
+
+    private static long startOfDay(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTimeInMillis();
+    }
+}
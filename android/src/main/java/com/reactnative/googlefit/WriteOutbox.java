@@ -0,0 +1,557 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.fitness.data.DataSet;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable queue for the samples of all save methods.
+ *
+ * A save appends its samples to a local SQLite table and returns; the samples are inserted into Google Fit
+ * later by a single flush thread. Saves that arrive within {@link #COALESCE_MILLIS} of each other are flushed
+ * together, one insert per data type and {@link #MAX_POINTS_PER_INSERT} points. A failed insert is retried
+ * with exponential backoff, and samples left over when the process dies are flushed after the next connect.
+ * Samples are only removed once Fit accepted them, or when they cannot be turned into a data point at all:
+ * if a chunk cannot be built, its samples are built one by one and only the ones that fail on their own are
+ * dropped.
+ *
+ * Every save gets a save id, the id of its first row, which the save method resolves with. The chunks of a
+ * kind are inserted side by side by {@link SaveDataHelper}, and every finished chunk emits
+ * {@link #EVENT_PROGRESS} with {@code {kind, chunk, chunks, points, success, saves}}, the ids of the saves in
+ * the chunk. Every flush emits {@link #EVENT_FLUSHED} with {@code {flushed, dropped, failed, pending, success,
+ * completedSaves, droppedSaves}}: the saves that have no samples left in the queue, and the saves that lost
+ * samples in this flush. {@code flushOutbox()} flushes right away, including samples that are still backing off,
+ * and resolves with the same result.
+ */
+final class WriteOutbox extends SQLiteOpenHelper {
+
+    static final String KIND_WEIGHT = "weight";
+    static final String KIND_HEIGHT = "height";
+    static final String KIND_BLOOD_GLUCOSE = "bloodGlucose";
+    static final String KIND_BLOOD_PRESSURE = "bloodPressure";
+    static final String KIND_FOOD = "food";
+    static final String KIND_HYDRATION = "hydration";
+
+    static final String EVENT_FLUSHED = "GoogleFitOutboxFlushed";
+    static final String EVENT_PROGRESS = "GoogleFitSaveProgress";
+
+    // Be sure to limit each individual request to 1000 datapoints. Exceeding this limit could result in an error.
+    // https://developers.google.com/fit/android/history#insert_data
+    static final int MAX_POINTS_PER_INSERT = 900;
+
+    // results of enqueue() that are not a save id
+    static final long NOTHING_QUEUED = 0;
+    static final long NOT_QUEUED = -1;
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String DATABASE_NAME = "rngooglefit_outbox.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE = "outbox";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_KIND = "kind";
+    private static final String COLUMN_PAYLOAD = "payload";
+    private static final String COLUMN_ATTEMPTS = "attempts";
+    private static final String COLUMN_NEXT_ATTEMPT = "next_attempt";
+    // rows queued before save ids existed have 0 and are not reported
+    private static final String COLUMN_SAVE = "save_id";
+
+    private static final long COALESCE_MILLIS = 2000;
+    private static final long BASE_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_ROWS_PER_FLUSH = 10000;
+    private static final long NOT_SCHEDULED = -1;
+
+    /**
+     * Turns queued samples of one kind, as they were passed to the save method, into a data set.
+     */
+    interface DataSetBuilder {
+        DataSet build(List<JSONObject> samples) throws JSONException;
+    }
+
+    private static final class Row {
+        final long id;
+        final long saveId;
+        final JSONObject sample;
+        final int attempts;
+
+        Row(long id, long saveId, JSONObject sample, int attempts) {
+            this.id = id;
+            this.saveId = saveId;
+            this.sample = sample;
+            this.attempts = attempts;
+        }
+    }
+
+    private final ReactContext mReactContext;
+    private final GoogleFitManager googleFitManager;
+    private final SaveDataHelper saveDataHelper;
+    private final Map<String, DataSetBuilder> builders = new ConcurrentHashMap<>();
+    private final HandlerThread thread;
+    private final Handler handler;
+    // uptime of the scheduled flush, NOT_SCHEDULED if none
+    private long scheduledAt = NOT_SCHEDULED;
+
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WriteOutbox.this) {
+                scheduledAt = NOT_SCHEDULED;
+            }
+            flush(false);
+        }
+    };
+
+    WriteOutbox(ReactContext reactContext, GoogleFitManager googleFitManager) {
+        super(reactContext.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+        this.mReactContext = reactContext;
+        this.googleFitManager = googleFitManager;
+        this.saveDataHelper = new SaveDataHelper();
+        this.thread = new HandlerThread("RNGoogleFit-outbox", Process.THREAD_PRIORITY_BACKGROUND);
+        this.thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_KIND + " TEXT NOT NULL, "
+                + COLUMN_PAYLOAD + " TEXT NOT NULL, "
+                + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_SAVE + " INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // queued samples are user data, future versions have to migrate them
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_SAVE + " INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+
+    void register(String kind, DataSetBuilder builder) {
+        builders.put(kind, builder);
+    }
+
+    long enqueue(String kind, ReadableMap sample) {
+        List<JSONObject> samples = new ArrayList<>(1);
+        samples.add(new JSONObject(sample.toHashMap()));
+        return enqueue(kind, samples);
+    }
+
+    /**
+     * Queues the samples of a bulk save. They are inserted in chunks of {@link #MAX_POINTS_PER_INSERT}.
+     */
+    long enqueue(String kind, ReadableArray samples) {
+        List<JSONObject> queued = new ArrayList<>(samples.size());
+        for (int index = 0; index < samples.size(); index++) {
+            ReadableMap sample = samples.getMap(index);
+            if (sample != null) {
+                queued.add(new JSONObject(sample.toHashMap()));
+            }
+        }
+        return enqueue(kind, queued);
+    }
+
+    /**
+     * Appends the samples in one transaction. Returns the save id, {@link #NOTHING_QUEUED} if there were no
+     * samples and {@link #NOT_QUEUED} if they could not be stored.
+     */
+    long enqueue(String kind, List<JSONObject> samples) {
+        if (samples.isEmpty()) {
+            return NOTHING_QUEUED;
+        }
+        long saveId = NOT_QUEUED;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (JSONObject sample : samples) {
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_KIND, kind);
+                    values.put(COLUMN_PAYLOAD, sample.toString());
+                    values.put(COLUMN_SAVE, saveId);
+                    long id = db.insertOrThrow(TABLE, null, values);
+                    if (saveId == NOT_QUEUED) {
+                        // AUTOINCREMENT never reuses a row id, so neither are save ids reused
+                        saveId = id;
+                        values.clear();
+                        values.put(COLUMN_SAVE, saveId);
+                        db.update(TABLE, values, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Outbox write failed: " + e);
+            return NOT_QUEUED;
+        }
+        schedule(COALESCE_MILLIS);
+        return saveId;
+    }
+
+    /**
+     * Flushes within the given delay, or keeps an earlier flush that is already scheduled.
+     */
+    synchronized void schedule(long delayMillis) {
+        long at = SystemClock.uptimeMillis() + delayMillis;
+        if (scheduledAt != NOT_SCHEDULED && scheduledAt <= at) {
+            return;
+        }
+        handler.removeCallbacks(scheduledFlush);
+        scheduledAt = at;
+        handler.postDelayed(scheduledFlush, delayMillis);
+    }
+
+    /**
+     * Flushes everything that is queued, ignoring backoff, and resolves with the counts of the flush.
+     */
+    void flush(final Promise promise) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                promise.resolve(flush(true));
+            }
+        });
+    }
+
+    /**
+     * Drops everything that is queued, without inserting it. Called on sign out: the samples were saved for
+     * the signed out account and must not end up in the next one. A flush that is running finishes first.
+     */
+    void clear() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (WriteOutbox.this) {
+                    handler.removeCallbacks(scheduledFlush);
+                    scheduledAt = NOT_SCHEDULED;
+                }
+                try {
+                    int dropped = getWritableDatabase().delete(TABLE, null, null);
+                    if (dropped > 0) {
+                        Log.w(TAG, "Dropped " + dropped + " queued samples on sign out");
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Outbox clear failed: " + e);
+                }
+            }
+        });
+    }
+
+    void shutdown() {
+        thread.quit();
+    }
+
+    private WritableMap flush(boolean force) {
+        int flushed = 0;
+        int dropped = 0;
+        int failed = 0;
+        Set<Long> saves = new TreeSet<>();
+        Set<Long> droppedSaves = new TreeSet<>();
+        GoogleApiClient client = googleFitManager.getGoogleApiClient();
+
+        // without a connection the samples stay queued, GoogleFitManager schedules a flush once connected
+        boolean connected = client != null && client.isConnected();
+        if (connected) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, List<Row>> kind : due(force ? Long.MAX_VALUE : now).entrySet()) {
+                DataSetBuilder builder = builders.get(kind.getKey());
+                if (builder == null) {
+                    continue;
+                }
+                for (Row row : kind.getValue()) {
+                    if (row.saveId > 0) {
+                        saves.add(row.saveId);
+                    }
+                }
+                int[] counts = insert(client, kind.getKey(), builder, kind.getValue(), now, droppedSaves);
+                flushed += counts[0];
+                dropped += counts[1];
+                failed += counts[2];
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+            }
+        }
+
+        long pending = count();
+        if (connected && pending > 0) {
+            long next = nextAttempt() - System.currentTimeMillis();
+            schedule(Math.max(next, COALESCE_MILLIS));
+        }
+
+        WritableMap result = Arguments.createMap();
+        result.putInt("flushed", flushed);
+        result.putInt("dropped", dropped);
+        result.putInt("failed", failed);
+        result.putDouble("pending", pending);
+        result.putBoolean("success", dropped == 0 && failed == 0);
+        WritableArray completed = Arguments.createArray();
+        for (long saveId : saves) {
+            if (queued(saveId) == 0) {
+                completed.pushDouble(saveId);
+            }
+        }
+        result.putArray("completedSaves", completed);
+        result.putArray("droppedSaves", ids(droppedSaves));
+        if (flushed > 0 || dropped > 0 || failed > 0) {
+            sendEvent(EVENT_FLUSHED, result.copy());
+        }
+        return result;
+    }
+
+    /**
+     * Inserts the rows of one kind in chunks of {@link #MAX_POINTS_PER_INSERT}. Inserted rows are deleted,
+     * failed chunks back off. Returns the number of inserted, dropped and failed samples.
+     */
+    private int[] insert(GoogleApiClient client, final String kind, DataSetBuilder builder, List<Row> rows,
+                         long now, Set<Long> droppedSaves) {
+        final int[] counts = new int[3];
+        final List<List<Row>> chunks = new ArrayList<>();
+        List<DataSet> dataSets = new ArrayList<>();
+        final List<Row> failed = new ArrayList<>();
+        for (int from = 0; from < rows.size(); from += MAX_POINTS_PER_INSERT) {
+            List<Row> chunk = rows.subList(from, Math.min(from + MAX_POINTS_PER_INSERT, rows.size()));
+            try {
+                dataSets.add(builder.build(samples(chunk)));
+                chunks.add(chunk);
+                continue;
+            } catch (JSONException | RuntimeException e) {
+                Log.w(TAG, "Could not build " + chunk.size() + " queued " + kind + " samples, checking them one by one: " + e);
+            }
+
+            // chunks mix the samples of unrelated saves, so only the samples that fail on their own are dropped
+            List<Row> valid = new ArrayList<>(chunk.size());
+            List<Row> malformed = new ArrayList<>();
+            for (Row row : chunk) {
+                try {
+                    builder.build(samples(Collections.singletonList(row)));
+                    valid.add(row);
+                } catch (JSONException | RuntimeException e) {
+                    // a malformed sample never becomes valid, retrying it would block the queue forever
+                    Log.w(TAG, "Dropping queued " + kind + " sample " + row.sample + ": " + e);
+                    malformed.add(row);
+                }
+            }
+            if (!malformed.isEmpty()) {
+                delete(malformed);
+                counts[1] += malformed.size();
+                for (Row row : malformed) {
+                    if (row.saveId > 0) {
+                        droppedSaves.add(row.saveId);
+                    }
+                }
+            }
+            if (valid.isEmpty()) {
+                continue;
+            }
+            try {
+                dataSets.add(builder.build(samples(valid)));
+                chunks.add(valid);
+            } catch (JSONException | RuntimeException e) {
+                // every sample is fine on its own, keep them and retry later instead of losing them
+                Log.w(TAG, "Could not build " + valid.size() + " queued " + kind + " samples: " + e);
+                failed.addAll(valid);
+                counts[2] += valid.size();
+            }
+        }
+
+        // the chunks that are still in flight when the flush is interrupted stay queued and are retried
+        try {
+            saveDataHelper.insert(client, dataSets, new SaveDataHelper.ChunkListener() {
+                @Override
+                public void onChunk(int index, boolean success) {
+                    List<Row> chunk = chunks.get(index);
+                    if (success) {
+                        delete(chunk);
+                        counts[0] += chunk.size();
+                    } else {
+                        failed.addAll(chunk);
+                        counts[2] += chunk.size();
+                    }
+
+                    WritableMap progress = Arguments.createMap();
+                    progress.putString("kind", kind);
+                    progress.putInt("chunk", index);
+                    progress.putInt("chunks", chunks.size());
+                    progress.putInt("points", chunk.size());
+                    progress.putBoolean("success", success);
+                    Set<Long> saves = new TreeSet<>();
+                    for (Row row : chunk) {
+                        if (row.saveId > 0) {
+                            saves.add(row.saveId);
+                        }
+                    }
+                    progress.putArray("saves", ids(saves));
+                    sendEvent(EVENT_PROGRESS, progress);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!failed.isEmpty()) {
+            backOff(failed, now);
+        }
+        return counts;
+    }
+
+    private static WritableArray ids(Set<Long> saveIds) {
+        WritableArray ids = Arguments.createArray();
+        for (long saveId : saveIds) {
+            ids.pushDouble(saveId);
+        }
+        return ids;
+    }
+
+    private static List<JSONObject> samples(List<Row> rows) {
+        List<JSONObject> samples = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            samples.add(row.sample);
+        }
+        return samples;
+    }
+
+    /**
+     * Queued samples whose next attempt is due, grouped by kind in queue order.
+     */
+    private Map<String, List<Row>> due(long now) {
+        Map<String, List<Row>> rows = new LinkedHashMap<>();
+        Cursor cursor = getReadableDatabase().query(
+                TABLE,
+                new String[]{COLUMN_ID, COLUMN_KIND, COLUMN_PAYLOAD, COLUMN_ATTEMPTS, COLUMN_SAVE},
+                COLUMN_NEXT_ATTEMPT + " <= ?",
+                new String[]{String.valueOf(now)},
+                null, null, COLUMN_ID, String.valueOf(MAX_ROWS_PER_FLUSH));
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                List<Row> kind = rows.get(cursor.getString(1));
+                if (kind == null) {
+                    kind = new ArrayList<>();
+                    rows.put(cursor.getString(1), kind);
+                }
+                try {
+                    kind.add(new Row(id, cursor.getLong(4), new JSONObject(cursor.getString(2)), cursor.getInt(3)));
+                } catch (JSONException e) {
+                    Log.w(TAG, "Dropping unreadable outbox row " + id + ": " + e);
+                    getWritableDatabase().delete(TABLE, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private void delete(List<Row> chunk) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Row row : chunk) {
+                db.delete(TABLE, COLUMN_ID + " = ?", new String[]{String.valueOf(row.id)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void backOff(List<Row> chunk, long now) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Row row : chunk) {
+                int attempts = row.attempts + 1;
+                long backoff = Math.min(BASE_BACKOFF_MILLIS << Math.min(attempts - 1, 20), MAX_BACKOFF_MILLIS);
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_ATTEMPTS, attempts);
+                values.put(COLUMN_NEXT_ATTEMPT, now + backoff);
+                db.update(TABLE, values, COLUMN_ID + " = ?", new String[]{String.valueOf(row.id)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private long count() {
+        return queryLong("SELECT COUNT(*) FROM " + TABLE);
+    }
+
+    private long queued(long saveId) {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT COUNT(*) FROM " + TABLE + " WHERE " + COLUMN_SAVE + " = ?",
+                new String[]{String.valueOf(saveId)});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long nextAttempt() {
+        return queryLong("SELECT MIN(" + COLUMN_NEXT_ATTEMPT + ") FROM " + TABLE);
+    }
+
+    private long queryLong(String sql) {
+        Cursor cursor = getReadableDatabase().rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void sendEvent(String eventName, @Nullable WritableMap params) {
+        mReactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(eventName, params);
+    }
+}
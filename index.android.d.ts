@@ -12,6 +12,41 @@ declare module 'react-native-google-fit' {
 
     removeListeners: () => void
 
+    /**
+     * Tune the native query layer.
+     * @param {Object} options queryPoolSize - number of history reads that may run in parallel (default 4).
+     *                         aggregateCache - cache closed buckets of bucketed reads on device (default true).
+     */
+    configure: (options: ConfigureOptions) => void
+
+    /**
+     * Cancel a running read that was started with the given requestId option.
+     * Its promise rejects with code E_CANCELLED. Resolves false if no such read is running.
+     */
+    cancel: (requestId: string) => Promise<boolean>
+
+    /**
+     * Drop every cached daily aggregate, the next reads go to Google Fit again.
+     */
+    clearCache: () => Promise<boolean>
+
+    /**
+     * Number of data points processed per reader, counted while logMode is 'counters'.
+     */
+    getLogCounters: (reset?: boolean) => Promise<{ [tag: string]: number }>
+
+    /**
+     * Time the module spent on the Android main thread, per source.
+     */
+    getMainThreadStats: (reset?: boolean) => Promise<{ [tag: string]: MainThreadStats }>
+
+    /**
+     * Latency per stage and payload size per native method, recorded while performanceStats is configured.
+     */
+    getPerformanceStats: (reset?: boolean) => Promise<{ [method: string]: MethodPerformanceStats }>
+
+    onPerformanceStats: (callback: (stats: { [method: string]: MethodPerformanceStats }) => void) => void
+
     /**
      * Start recording fitness data (steps, distance)
      * This function relies on sending events to signal the RecordingAPI status
@@ -37,18 +72,22 @@ declare module 'react-native-google-fit' {
      * Get the total steps per day over a specified date range.
      * @param {Object} options getDailyStepCountSamples accepts an options object containing optional startDate: ISO8601Timestamp and endDate: ISO8601Timestamp.
      */
-    getDailyStepCountSamples: (
-      options: StartAndEndDate & Partial<BucketOptions>
-    ) => Promise<StepsResponse[]>
+    getDailyStepCountSamples: {
+      (options: StartAndEndDate & Partial<BucketOptions> & DailyRollup): Promise<DailyStepsResponse[]>
+      (options: StartAndEndDate & Partial<BucketOptions> & ColumnarFormat): Promise<ColumnarStepsResponse[]>
+      (options: StartAndEndDate & Partial<BucketOptions> & DictionaryFormat): Promise<DictionaryStepsResponse[]>
+      (options: StartAndEndDate & Partial<BucketOptions> & QueryOptions): Promise<StepsResponse[]>
+    }
 
     /**
      * Get the total distance per day over a specified date range.
      * @param {Object} options getDailyDistanceSamples accepts an options object containing optional startDate: ISO8601Timestamp and endDate: ISO8601Timestamp.
      */
 
-    getDailyDistanceSamples: (
-      options: StartAndEndDate & Partial<BucketOptions>
-    ) => Promise<DistanceResponse[]>
+    getDailyDistanceSamples: {
+      (options: StartAndEndDate & Partial<BucketOptions> & ColumnarFormat): Promise<ColumnarResponse>
+      (options: StartAndEndDate & Partial<BucketOptions> & QueryOptions): Promise<DistanceResponse[]>
+    }
 
     /**
      * Get the total steps per day over a specified date range.
@@ -65,13 +104,30 @@ declare module 'react-native-google-fit' {
       options: StartAndEndDate & Partial<BucketOptions>,
     ) => Promise<ActivitySampleResponse[]>;
 
+    /**
+     * Get several activity metrics over the same buckets with a single read.
+     * Each bucket holds a total for every requested type, 0 when there is no data.
+     */
+    getSummary: <T extends SummaryType>(
+      types: T[],
+      options: StartAndEndDate & Partial<BucketOptions>,
+    ) => Promise<Array<SummaryBucket & Record<T, number>>>;
+
+    /**
+     * Run several reads with one bridge call, natively in parallel.
+     * Results are the raw native results of each query, errors of single queries do not fail the batch.
+     */
+    batch: (queries: BatchQuery[]) => Promise<BatchResponse>;
+
     /**
      * Get the Move Minutes over a specified date range.
      * @param {Object} options getMoveMinutes accepts an options object containing required startDate: ISO8601Timestamp and endDate: ISO8601Timestamp.
      */
-    getMoveMinutes: (
-      options: StartAndEndDate & Partial<BucketOptions>,
-    ) => Promise<MoveMinutesResponse[]>;
+    getMoveMinutes: {
+      (options: StartAndEndDate & Partial<BucketOptions> & ColumnarFormat): Promise<ColumnarResponse>
+      (options: StartAndEndDate & Partial<BucketOptions> & DictionaryFormat): Promise<DictionaryResponse<MoveMinutesResponse>>
+      (options: StartAndEndDate & Partial<BucketOptions> & QueryOptions): Promise<MoveMinutesResponse[]>
+    }
     /**
      * Get the total calories per day over a specified date range.
      * @param {Object} options getDailyCalorieSamples accepts an options object containing required startDate: ISO8601Timestamp and endDate: ISO8601Timestamp. optional basalCalculation - {true || false} should we substract the basal metabolic rate averaged over a week
@@ -86,9 +142,14 @@ declare module 'react-native-google-fit' {
 
     saveFood: (
       options: FoodIntake,
-      callback: (isError: boolean, result: true) => void
+      callback: (isError: boolean, result: SaveResult) => void
     ) => void;
 
+    /**
+     * Save many food entries at once, inserted in chunks of up to 900 points.
+     */
+    saveFoods: (samples: FoodIntake[]) => Promise<SaveResult>;
+
     /**
      * Query for weight samples. the options object is used to setup a query to retrieve relevant samples.
      * @param {Object} options  getWeightSamples accepts an options object containing unit: "pound"/"kg",
@@ -107,61 +168,85 @@ declare module 'react-native-google-fit' {
       options: StartAndEndDate
     ) => Promise<HeightResponse[]>;
 
-    getHeartRateSamples: (
-      options: StartAndEndDate & Partial<BucketOptions>
-    ) => Promise<HeartRateResponse[]>;
+    getHeartRateSamples: {
+      (options: StartAndEndDate & Partial<BucketOptions> & ColumnarFormat): Promise<ColumnarResponse>
+      (options: StartAndEndDate & Partial<BucketOptions> & QueryOptions): Promise<HeartRateResponse[]>
+    }
 
     /**
      * Query for getting aggregated heart rate samples.
      * @param options
      * @param inLocalTimeZone
      */
-    getAggregatedHeartRateSamples: (
-      options: StartAndEndDate & Partial<BucketOptions>,
-      inLocalTimeZone: boolean
-    ) => Promise<AggregatedHeartRateResponse[]>;
+    getAggregatedHeartRateSamples: {
+      (options: StartAndEndDate & Partial<BucketOptions> & ColumnarFormat, inLocalTimeZone: boolean): Promise<ColumnarResponse>
+      (options: StartAndEndDate & Partial<BucketOptions> & QueryOptions, inLocalTimeZone: boolean): Promise<AggregatedHeartRateResponse[]>
+    }
 
     /**
      * Query for getting resting heart rate samples. the options object is used to setup a query to retrieve relevant samples.
      * @param {Object} options  getRestingHeartRateSamples accepts an options object startDate: ISO8601Timestamp and endDate: ISO8601Timestamp.
      *                          
      */
-    getRestingHeartRateSamples: (
-      options: StartAndEndDate & Partial<BucketOptions>
-    ) => Promise<HeartRateResponse[]>;
-
-    getBloodPressureSamples: (
-      options: StartAndEndDate & Partial<BucketOptions>
-    ) => Promise<BloodPressureResponse[]>;
-
-    getBloodGlucoseSamples: (
-      options: StartAndEndDate & Partial<BucketOptions>
-    ) => Promise<BloodGlucoseResponse[]>;
-
-    getBodyTemperatureSamples: (
-      options: StartAndEndDate & Partial<BucketOptions>
-    ) => Promise<BodyTemperatureResponse[]>;
-
-    getOxygenSaturationSamples: (
-      options: StartAndEndDate & Partial<BucketOptions>
-    ) => Promise<OxygenSaturationResponse[]>;
+    getRestingHeartRateSamples: {
+      (options: StartAndEndDate & Partial<BucketOptions> & ColumnarFormat): Promise<ColumnarResponse>
+      (options: StartAndEndDate & Partial<BucketOptions> & QueryOptions): Promise<HeartRateResponse[]>
+    }
+
+    getBloodPressureSamples: {
+      (options: StartAndEndDate & Partial<BucketOptions> & ColumnarFormat): Promise<ColumnarResponse>
+      (options: StartAndEndDate & Partial<BucketOptions> & QueryOptions): Promise<BloodPressureResponse[]>
+    }
+
+    getBloodGlucoseSamples: {
+      (options: StartAndEndDate & Partial<BucketOptions> & ColumnarFormat): Promise<ColumnarResponse>
+      (options: StartAndEndDate & Partial<BucketOptions> & QueryOptions): Promise<BloodGlucoseResponse[]>
+    }
+
+    getBodyTemperatureSamples: {
+      (options: StartAndEndDate & Partial<BucketOptions> & ColumnarFormat): Promise<ColumnarResponse>
+      (options: StartAndEndDate & Partial<BucketOptions> & QueryOptions): Promise<BodyTemperatureResponse[]>
+    }
+
+    getOxygenSaturationSamples: {
+      (options: StartAndEndDate & Partial<BucketOptions> & ColumnarFormat): Promise<ColumnarResponse>
+      (options: StartAndEndDate & Partial<BucketOptions> & QueryOptions): Promise<OxygenSaturationResponse[]>
+    }
 
     saveBloodGlucose: (
       options: { date: string, value: number },
-    ) => Promise<Boolean | undefined>
+    ) => Promise<SaveResult>
 
     saveBloodPressure: (
       options: { date: string, systolic: number, diastolic: number },
-    ) => Promise<Boolean | undefined>
+    ) => Promise<SaveResult>
+
+    /**
+     * Save many readings at once, e.g. a glucometer import, inserted in chunks of up to 900 points.
+     */
+    saveBloodGlucoseBatch: (
+      samples: Array<{ date: string, value: number }>,
+    ) => Promise<SaveResult>
+
+    saveBloodPressureBatch: (
+      samples: Array<{ date: string, systolic: number, diastolic: number }>,
+    ) => Promise<SaveResult>
+
+    /**
+     * Save many weights at once, e.g. a scale import, inserted in chunks of up to 900 points.
+     */
+    saveWeights: (samples: Array<WeightData & { value: number }>) => Promise<SaveResult>
+
+    saveHeights: (samples: Array<{ date: string, value: number }>) => Promise<SaveResult>
 
     saveWeight: (
       options: WeightData,
-      callback: (isError: boolean, result: true) => void
+      callback: (isError: boolean, result: SaveResult) => void
     ) => void
 
     saveHeight: (
       options: { date: string, value: number },
-      callback: (isError: boolean, result: true) => void
+      callback: (isError: boolean, result: SaveResult) => void
     ) => void
 
     deleteWeight: (
@@ -180,7 +265,7 @@ declare module 'react-native-google-fit' {
 
     saveHydration: (
       hydrationArray: Hydration[],
-      callback: (isError: boolean, result: true) => void
+      callback: (isError: boolean, result: SaveResult) => void
     ) => void
 
     deleteHydration: (
@@ -224,7 +309,37 @@ declare module 'react-native-google-fit' {
 
     openFit(): void
 
-    observeSteps: (callback: (isError: boolean, result: any) => void) => void
+    observeSteps: (callback: (event: StepChangedEvent) => void, options?: ObserveStepsOptions) => void
+
+    /**
+     * Totals of the steps observed by observeSteps so far, without a Google Fit read.
+     */
+    getLiveStepTotal: () => Promise<{ sessionTotal: number, dayTotal: number, timestamp: number }>
+
+    /**
+     * Live steps from the hardware step counter, batched in hardware and sent at most once per emitInterval.
+     * Resolves false if the device has no step counter.
+     */
+    startLiveSteps: (
+      options: LiveStepsOptions,
+      callback: (event: { steps: number, timestamp: number, stepsToday: number }) => void
+    ) => Promise<boolean>
+
+    stopLiveSteps: () => void
+
+    /**
+     * Today's steps from memory: the last synced Google Fit total plus live steps since then.
+     */
+    getTodaySteps: () => Promise<TodaySteps>
+
+    /**
+     * Steps recorded by the step counter sensor today, read from the device without Google Fit.
+     */
+    getSensorStepsToday: () => Promise<number>
+
+    getSensorStepSamples: (
+      options: { startDate: string, endDate: string }
+    ) => Promise<Array<{ startDate: number, endDate: number, steps: number }>>
 
     observeHistory: (callback: (isError: boolean, result: any) => void) => void
 
@@ -234,10 +349,83 @@ declare module 'react-native-google-fit' {
       callback: (isError: boolean, result: any) => void
     ) => void
 
+    /**
+     * Called after every flush of queued saves that inserted or dropped samples.
+     */
+    onOutboxFlushed: (callback: (result: OutboxFlushResult) => void) => void
+
+    onSaveProgress: (callback: (progress: SaveProgress) => void) => void
+
+    /**
+     * Insert all queued saves into Google Fit now, including the ones waiting for a retry.
+     */
+    flushOutbox: () => Promise<OutboxFlushResult>
+
     unsubscribeListeners: () => void
 
   }
 
+  export type ObserveStepsOptions = {
+    /**
+     * How often Google Fit delivers step deltas in milliseconds, default 3000.
+     */
+    samplingRate?: number,
+    /**
+     * Minimum time between two events in milliseconds, default 3000.
+     */
+    emitInterval?: number,
+  };
+
+  export type StepChangedEvent = {
+    /**
+     * Steps since the previous event, same as delta.
+     */
+    steps: number,
+    delta: number,
+    /**
+     * Steps since observeSteps was called.
+     */
+    sessionTotal: number,
+    /**
+     * Steps observed today, in local time.
+     */
+    dayTotal: number,
+    /**
+     * End time of the latest step delta.
+     */
+    timestamp: number,
+  };
+
+  export type TodaySteps = {
+    /**
+     * synced + live, null until today's total was synced with Google Fit once.
+     */
+    steps: number | null,
+    /**
+     * Google Fit daily total at syncedAt.
+     */
+    synced: number,
+    /**
+     * Live steps taken after syncedAt.
+     */
+    live: number,
+    /**
+     * Time of the last sync with Google Fit, 0 if there was none today.
+     */
+    syncedAt: number,
+  };
+
+  export type LiveStepsOptions = {
+    /**
+     * Minimum time between two events in milliseconds, default 5000.
+     */
+    emitInterval?: number,
+    /**
+     * How long the sensor hub may batch steps before waking the app, defaults to emitInterval.
+     */
+    maxReportLatency?: number,
+  };
+
   export type Day = "Mon" | "Tue" | "Wed" | "Thu" | "Fri" | "Sat" | "Sun";
 
   export type BucketUnitType = "NANOSECOND" | "MICROSECOND" | "MILLISECOND" | "SECOND" | "MINUTE" | "HOUR" | "DAY";
@@ -279,6 +467,23 @@ declare module 'react-native-google-fit' {
     scopes: Array<Scopes>
   };
 
+  export type ConfigureOptions = {
+    queryPoolSize?: number
+    aggregateCache?: boolean
+    logLevel?: 'verbose' | 'debug' | 'info' | 'warn' | 'error' | 'none'
+    logMode?: 'all' | 'sampled' | 'counters'
+    logSampleRate?: number
+    performanceStats?: boolean
+    /**
+     * Send the performance stats to onPerformanceStats every n milliseconds, 0 to stop.
+     */
+    performanceStatsInterval?: number
+    /**
+     * Mark the stages of every read as trace sections, see Perfetto / systrace. Needs Android 4.3+.
+     */
+    trace?: boolean
+  };
+
   export type Hydration = {
     date: number
     waterConsumed: number
@@ -292,6 +497,14 @@ declare module 'react-native-google-fit' {
   export type StartAndEndDate = {
     startDate: string,
     endDate: string,
+    /**
+     * Handle to cancel the read with cancel(requestId), its promise then rejects with code E_CANCELLED.
+     */
+    requestId?: string,
+    /**
+     * Milliseconds the read may take, including follow-up reads. Past it the promise rejects with code E_TIMEOUT.
+     */
+    timeout?: number,
   };
 
 
@@ -300,6 +513,65 @@ declare module 'react-native-google-fit' {
     endDate: number
   };
 
+  export type QueryOptions = {
+    /**
+     * 'columnar' returns parallel arrays instead of one object per sample, see ColumnarResponse.
+     * 'dictionary' moves the data source metadata into a sources table, see DictionaryResponse.
+     */
+    format?: 'rows'
+  };
+
+  export type ColumnarFormat = {
+    format: 'columnar'
+  };
+
+  export type DictionaryFormat = {
+    format: 'dictionary'
+  };
+
+  export type DailyRollup = {
+    /**
+     * 'day' sums the samples into local calendar days natively, only the daily totals are returned.
+     */
+    rollup: 'day'
+  };
+
+  export type ColumnarResponse = {
+    startDate: number[],
+    endDate: number[],
+    value: Array<number | null>,
+    /**
+     * index into sources, null when the sample carries no data source
+     */
+    sourceIndex: Array<number | null>,
+    sources: string[],
+    /**
+     * further numeric fields of the samples, e.g. min / max / diastolic
+     */
+    [column: string]: Array<number | string | null>,
+  };
+
+  export type DictionaryResponse<T> = {
+    sources: Array<Partial<DeviceInfo>>,
+    samples: Array<Omit<T, keyof DeviceInfo> & { sourceIndex?: number }>
+  };
+
+  export type DailyStepsResponse = {
+    source: string,
+    steps: Array<{date: string, value: number }>
+  };
+
+  export type DictionaryStepsResponse = {
+    source: string,
+    steps: Array<{date: string, value: number }>,
+    rawSteps: DictionaryResponse<RawStep>
+  };
+
+  export type ColumnarStepsResponse = {
+    source: string,
+    steps: ColumnarResponse
+  };
+
   export type BucketOptions = {
     bucketInterval: number,
     bucketUnit: BucketUnit
@@ -440,6 +712,130 @@ declare module 'react-native-google-fit' {
     date: string
   };
 
+  export type SummaryType = 'steps' | 'distance' | 'calories' | 'moveMinutes' | 'heartPoints';
+
+  export type SummaryBucket = {
+    startDate: number,
+    endDate: number,
+  }
+
+  export type OutboxFlushResult = {
+    /**
+     * Samples inserted into Google Fit.
+     */
+    flushed: number,
+    /**
+     * Malformed samples that were removed from the queue.
+     */
+    dropped: number,
+    /**
+     * Samples of failed inserts, they stay queued and are retried later.
+     */
+    failed: number,
+    /**
+     * Samples still queued, e.g. waiting for a retry or a connection.
+     */
+    pending: number,
+    /**
+     * Whether every insert of the flush succeeded and nothing was dropped.
+     */
+    success: boolean,
+    /**
+     * Saves of this flush that have no samples left in the queue, all of them were inserted unless the save
+     * is also in droppedSaves of this or an earlier flush.
+     */
+    completedSaves: number[],
+    /**
+     * Saves that had malformed samples dropped in this flush.
+     */
+    droppedSaves: number[],
+  };
+
+  /**
+   * What a save settles with as soon as its samples are queued: the save id that shows up in SaveProgress.saves
+   * and OutboxFlushResult.completedSaves once the samples are in Google Fit, true if there was nothing to save,
+   * false if the samples could not be queued.
+   */
+  export type SaveResult = number | boolean;
+
+  export type SaveProgress = {
+    kind: 'weight' | 'height' | 'bloodGlucose' | 'bloodPressure' | 'food' | 'hydration',
+    /**
+     * Index of the chunk within the flush of this kind.
+     */
+    chunk: number,
+    chunks: number,
+    points: number,
+    success: boolean,
+    /**
+     * Ids of the saves with samples in this chunk.
+     */
+    saves: number[],
+  };
+
+  export type MainThreadStats = {
+    count: number,
+    totalMs: number,
+    maxMs: number,
+    /**
+     * Runs that took longer than one 16ms frame.
+     */
+    overFrame: number,
+  };
+
+  export type StageStats = {
+    count: number,
+    totalMs: number,
+    maxMs: number,
+    /**
+     * Bucket i counts the calls that took less than 2^i ms, the last bucket everything longer.
+     */
+    histogram: number[],
+  };
+
+  export type MethodPerformanceStats = {
+    calls: number,
+    errors: number,
+    /**
+     * Result maps returned, and the estimated JSON size of the results.
+     */
+    points: number,
+    bytes: number,
+    maxPoints: number,
+    maxBytes: number,
+    queue: StageStats,
+    fit: StageStats,
+    process: StageStats,
+    serialize: StageStats,
+    total: StageStats,
+  };
+
+  export type BatchQueryType = 'steps' | 'activity' | 'moveMinutes' | 'summary' | 'distance' | 'weight' | 'height'
+    | 'calories' | 'nutrition' | 'heartRate' | 'aggregatedHeartRate' | 'restingHeartRate' | 'bloodPressure'
+    | 'bloodGlucose' | 'bodyTemperature' | 'oxygenSaturation' | 'hydration' | 'sleep' | 'workout';
+
+  export type BatchQuery = StartAndEndDate & Partial<BucketOptions> & QueryOptions & {
+    id: string,
+    type: BatchQueryType,
+    /**
+     * Metrics of a 'summary' query.
+     */
+    types?: SummaryType[],
+    /**
+     * Basal calculation of a 'calories' query, defaults to true.
+     */
+    basalCalculation?: boolean,
+    /**
+     * Sessions of all apps for a 'workout' query.
+     */
+    readSessionFromAllApps?: boolean,
+  };
+
+  export type BatchResponse = {
+    results: { [id: string]: any },
+    errors: { [id: string]: { code: string, message: string } },
+  };
+
   export type MoveMinutesResponse = {
     dataTypeName: string,
     dataSourceId: string,
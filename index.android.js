@@ -14,6 +14,7 @@ import {
   prepareDeleteOptions,
   getWeekBoundary,
   prepareInput,
+  prepareQueryOptions,
 } from './src/utils';
 
 const googleFit = NativeModules.RNGoogleFit
@@ -71,6 +72,73 @@ class RNGoogleFit {
     this.eventListeners = []
   }
 
+  /**
+   * Tune the native query layer.
+   * @param {Object} options accepts optional queryPoolSize: number of history reads that may run in parallel (default 4),
+   *                         aggregateCache: cache closed buckets of bucketed reads on device (default true),
+   *                         logLevel: 'verbose' | 'debug' | 'info' | 'warn' | 'error' | 'none' (default 'warn'),
+   *                         logMode: 'all' | 'sampled' | 'counters' (default 'all'),
+   *                         logSampleRate: log every n-th data point in 'sampled' mode (default 100),
+   *                         performanceStats: measure every native call, see getPerformanceStats (default false),
+   *                         performanceStatsInterval: send the stats to onPerformanceStats every n ms (default 0, off),
+   *                         trace: mark the stages of every read in Perfetto / systrace traces (default false).
+   */
+  configure = (options = {}) => {
+    googleFit.configure(options)
+  }
+
+  /**
+   * Cancel a running read that was started with the given requestId option.
+   * Its promise rejects with code E_CANCELLED. Resolves false if no such read is running.
+   * @param {string} requestId
+   */
+  cancel = (requestId) => {
+    return googleFit.cancel(requestId)
+  }
+
+  /**
+   * Drop every cached daily aggregate, the next reads go to Google Fit again.
+   */
+  clearCache = () => {
+    return googleFit.clearCache()
+  }
+
+  /**
+   * Number of data points processed per reader since the last reset, counted while logMode is 'counters'.
+   * @param {boolean} reset start counting from zero again
+   */
+  getLogCounters = (reset = false) => {
+    return googleFit.getLogCounters(reset)
+  }
+
+  /**
+   * Time the module spent on the Android main thread per source, as {count, totalMs, maxMs, overFrame}.
+   * @param {boolean} reset start measuring from zero again
+   */
+  getMainThreadStats = (reset = false) => {
+    return googleFit.getMainThreadStats(reset)
+  }
+
+  /**
+   * Latency per stage and payload size per native method, recorded while the performanceStats option is on.
+   * @param {boolean} reset start measuring from zero again
+   */
+  getPerformanceStats = (reset = false) => {
+    return googleFit.getPerformanceStats(reset)
+  }
+
+  /**
+   * Called with the performance stats every performanceStatsInterval milliseconds.
+   * @param {Function} callback
+   */
+  onPerformanceStats = callback => {
+    const statsObserver = DeviceEventEmitter.addListener(
+      'GoogleFitPerformanceStats',
+      stats => callback(stats)
+    )
+    this.eventListeners.push(statsObserver)
+  }
+
 
   // recommend to refactor both permission to allow other permission options besides PERMISSONS.ACCESS_FINE_LOCATION
   // check permissions
@@ -167,6 +235,7 @@ class RNGoogleFit {
   /**
    * Get the total steps per day over a specified date range.
    * @param {Object} options getDailyStepCountSamples accepts an options object containing required startDate: ISO8601Timestamp and endDate: ISO8601Timestamp.
+   *                         Optional rollup: 'day' returns only the daily totals, summed natively.
    */
 
   getDailyStepCountSamples = async (options) => {
@@ -177,8 +246,15 @@ class RNGoogleFit {
       endDate,
       bucketInterval,
       bucketUnit,
+      prepareQueryOptions(options),
     );
 
+    // columnar steps are handed out as they are, daily totals need the row format
+    const columnar = options.format === 'columnar'
+    // with the native rollup the steps already are the daily totals
+    const rollup = options.rollup === 'day'
+    const dictionary = options.format === 'dictionary'
+
     var result;
     if(data.length > 0) {
       result = data.map(function(dev) {
@@ -186,7 +262,11 @@ class RNGoogleFit {
         obj.source =
           dev.source.appPackage +
           (dev.source.stream ? ':' + dev.source.stream : '')
-        obj.steps = buildDailySteps(dev.steps)
+        if (columnar || rollup) {
+          obj.steps = dev.steps
+          return obj
+        }
+        obj.steps = buildDailySteps(dictionary ? dev.steps.samples : dev.steps)
         obj.rawSteps = dev.steps
         return obj
       }, this);
@@ -228,6 +308,7 @@ class RNGoogleFit {
       endDate,
       bucketInterval,
       bucketUnit,
+      prepareQueryOptions(options),
     );
 
     //construct dataset when callback is successful
@@ -245,12 +326,66 @@ class RNGoogleFit {
       startDate,
       endDate,
       bucketInterval,
-      bucketUnit
+      bucketUnit,
+      prepareQueryOptions(options),
     );
 
     return result;
   }
 
+  /**
+   * Get several activity metrics over the same buckets with one native read.
+   * @param {Array} types any of 'steps', 'distance', 'calories', 'moveMinutes', 'heartPoints'
+   * @param {Object} options accepts required startDate: ISO8601Timestamp and endDate: ISO8601Timestamp, optional bucketInterval and bucketUnit
+   */
+  getSummary = async (types, options) => {
+    const { startDate, endDate, bucketInterval, bucketUnit } = prepareInput(options);
+
+    return googleFit.getSummary(
+      types,
+      startDate,
+      endDate,
+      bucketInterval,
+      bucketUnit,
+      prepareQueryOptions(options),
+    );
+  }
+
+  /**
+   * Run several reads with one bridge call, natively in parallel.
+   * Results are the raw native results of each query, without the post-processing of the single methods.
+   * @param {Array} queries each with an id, a type ('steps', 'weight', 'heartRate', 'sleep', 'workout', ...)
+   * and the options of the single method of that type
+   * @return {Promise} resolves with {results, errors}, both keyed by query id
+   */
+  batch = async (queries) => {
+    const descriptors = queries.map(({ id, type, types, basalCalculation, readSessionFromAllApps, ...options }, index) => {
+      const { startDate, endDate, bucketInterval, bucketUnit } = prepareInput(options);
+      const queryOptions = prepareQueryOptions(options);
+      if (!isNil(readSessionFromAllApps)) {
+        queryOptions.readSessionFromAllApps = readSessionFromAllApps;
+      }
+      const descriptor = {
+        id: String(isNil(id) ? index : id),
+        type,
+        startDate,
+        endDate,
+        bucketInterval,
+        bucketUnit,
+        options: queryOptions,
+      };
+      if (!isNil(types)) {
+        descriptor.types = types;
+      }
+      if (!isNil(basalCalculation)) {
+        descriptor.basalCalculation = basalCalculation;
+      }
+      return descriptor;
+    });
+
+    return googleFit.batch(descriptors);
+  }
+
   getMoveMinutes = async (options) => {
     const { startDate, endDate, bucketInterval, bucketUnit } = prepareInput(options);
 
@@ -258,7 +393,8 @@ class RNGoogleFit {
       startDate,
       endDate,
       bucketInterval,
-      bucketUnit
+      bucketUnit,
+      prepareQueryOptions(options),
     );
 
     return result;
@@ -281,6 +417,7 @@ class RNGoogleFit {
       basalCalculation,
       bucketInterval,
       bucketUnit,
+      prepareQueryOptions(options),
     );
 
     //construct dataset when callback is successful
@@ -298,6 +435,7 @@ class RNGoogleFit {
       endDate,
       bucketInterval,
       bucketUnit,
+      prepareQueryOptions(options),
     );
     //construct dataset when callback is successful
     if (result.length > 0) {
@@ -313,7 +451,7 @@ class RNGoogleFit {
       const result = await googleFit.getWorkoutSession(
         Date.parse(startDate),
         Date.parse(endDate),
-        config
+        { ...config, ...prepareQueryOptions(config) }
       );
       return result;
     } catch (err) {
@@ -376,6 +514,14 @@ class RNGoogleFit {
     )
   }
 
+  /**
+   * Save many food entries at once. The samples are inserted in chunks of up to 900 points.
+   * @param {Array} samples [{foodName, nutrients, date, mealType}]
+   */
+  saveFoods = async (samples) => {
+    return googleFit.saveFoods(samples.map(sample => ({ ...sample, date: Date.parse(sample.date) })))
+  }
+
   /**
    * Query for weight samples. the options object is used to setup a query to retrieve relevant samples.
    * @param {Object} options  getDailyStepCountSamples accepts an options object containing unit: "pound"/"kg",
@@ -389,7 +535,8 @@ class RNGoogleFit {
       startDate,
       endDate,
       bucketInterval,
-      bucketUnit
+      bucketUnit,
+      prepareQueryOptions(options),
     );
 
     if (raw_result.length > 0) {
@@ -426,7 +573,8 @@ class RNGoogleFit {
       startDate,
       endDate,
       bucketInterval,
-      bucketUnit
+      bucketUnit,
+      prepareQueryOptions(options),
     );
     if (result.length > 0) {
       return prepareResponse(result, 'value');
@@ -464,6 +612,21 @@ class RNGoogleFit {
     )
   }
 
+  /**
+   * Save many weights at once, e.g. an import from a scale. The samples are inserted in chunks of up to 900 points.
+   * @param {Array} samples [{value, date, unit?}]
+   */
+  saveWeights = async (samples) => {
+    return googleFit.saveWeights(samples.map(sample => ({
+      value: sample.unit === 'pound' ? lbsAndOzToK({ pounds: sample.value, ounces: 0 }) : sample.value,
+      date: Date.parse(sample.date),
+    })))
+  }
+
+  saveHeights = async (samples) => {
+    return googleFit.saveHeights(samples.map(sample => ({ ...sample, date: Date.parse(sample.date) })))
+  }
+
   deleteWeight = (options, callback) => {
     googleFit.deleteWeight(
       prepareDeleteOptions(options),
@@ -516,15 +679,71 @@ class RNGoogleFit {
     googleFit.openFit()
   }
 
-  observeSteps = callback => {
+  /**
+   * Live steps from Google Fit. The callback gets at most one event per emitInterval with the steps since the
+   * previous event and the running totals of the session and the day.
+   * @param {Function} callback ({steps, delta, sessionTotal, dayTotal, timestamp})
+   * @param {Object} options {samplingRate?, emitInterval?} in milliseconds, default 3000
+   */
+  observeSteps = (callback, options = {}) => {
     const stepsObserver = DeviceEventEmitter.addListener(
       'StepChangedEvent',
       steps => callback(steps)
     )
-    googleFit.observeSteps()
+    googleFit.observeSteps(options)
     this.eventListeners.push(stepsObserver)
   }
 
+  /**
+   * Totals of the steps observed by observeSteps so far, answered natively without a Google Fit read.
+   */
+  getLiveStepTotal = async () => {
+    return googleFit.getLiveStepTotal()
+  }
+
+  /**
+   * Live steps from the hardware step counter. The counter counts since boot, the callback gets its latest value
+   * at most once per emitInterval. Resolves false if the device has no step counter.
+   * @param {Object} options {emitInterval?, maxReportLatency?} in milliseconds, default 5000
+   * @param {Function} callback ({steps, timestamp})
+   */
+  startLiveSteps = async (options = {}, callback) => {
+    const liveStepsObserver = DeviceEventEmitter.addListener(
+      'StepSensorChangedEvent',
+      steps => callback(steps)
+    )
+    this.eventListeners.push(liveStepsObserver)
+    return googleFit.startLiveSteps(options)
+  }
+
+  stopLiveSteps = () => {
+    googleFit.stopLiveSteps()
+  }
+
+  /**
+   * Today's steps without waiting for Google Fit: the last synced daily total plus the live steps of observeSteps
+   * and startLiveSteps since then. A stale total is reconciled with Google Fit in the background; steps is null
+   * until the first total was synced.
+   */
+  getTodaySteps = async () => {
+    return googleFit.getTodaySteps()
+  }
+
+  /**
+   * Steps the step counter sensor recorded today while live steps were running, read from the device.
+   */
+  getSensorStepsToday = async () => {
+    return googleFit.getSensorStepsToday()
+  }
+
+  /**
+   * Per minute steps the step counter sensor recorded, kept on the device for 35 days.
+   * @param {Object} options {startDate, endDate}
+   */
+  getSensorStepSamples = async (options) => {
+    return googleFit.getSensorStepSamples(Date.parse(options.startDate), Date.parse(options.endDate))
+  }
+
   observeHistory = callback => {
     const historyObserver = DeviceEventEmitter.addListener(
       'StepHistoryChangedEvent',
@@ -541,6 +760,39 @@ class RNGoogleFit {
     this.eventListeners.push(authObserver)
   }
 
+  /**
+   * Saves are queued on the device and inserted into Google Fit in batches, the callback gets
+   * {flushed, dropped, pending, completedSaves, droppedSaves} after every flush that inserted or dropped samples.
+   * The save methods resolve with the save id used in completedSaves and droppedSaves.
+   */
+  onOutboxFlushed = callback => {
+    const outboxObserver = DeviceEventEmitter.addListener(
+      'GoogleFitOutboxFlushed',
+      result => callback(result)
+    )
+    this.eventListeners.push(outboxObserver)
+  }
+
+  /**
+   * Called for every chunk of queued saves that was inserted into Google Fit or failed.
+   * @param {Function} callback ({kind, chunk, chunks, points, success, saves})
+   */
+  onSaveProgress = callback => {
+    const progressObserver = DeviceEventEmitter.addListener(
+      'GoogleFitSaveProgress',
+      progress => callback(progress)
+    )
+    this.eventListeners.push(progressObserver)
+  }
+
+  /**
+   * Insert all queued saves into Google Fit now, including the ones waiting for a retry.
+   * @return {Promise} resolves with {flushed, dropped, pending}
+   */
+  flushOutbox = () => {
+    return googleFit.flushOutbox()
+  }
+
   onAuthorizeFailure = callback => {
     const authFailedObserver = DeviceEventEmitter.addListener(
       'GoogleFitAuthorizeFailure',
@@ -559,7 +811,8 @@ class RNGoogleFit {
       startDate,
       endDate,
       bucketInterval,
-      bucketUnit
+      bucketUnit,
+      prepareQueryOptions(options),
     );
     if (result.length > 0) {
       return prepareResponse(result, 'value');
@@ -573,7 +826,8 @@ class RNGoogleFit {
       startDate,
       endDate,
       bucketInterval,
-      bucketUnit
+      bucketUnit,
+      prepareQueryOptions(options),
     );
     if (result.length > 0) {
       return prepareResponse(result, 'average', inLocalTimeZone);
@@ -587,7 +841,8 @@ class RNGoogleFit {
       startDate,
       endDate,
       bucketInterval,
-      bucketUnit
+      bucketUnit,
+      prepareQueryOptions(options),
     );
     if (result.length > 0) {
       return prepareResponse(result, 'value');
@@ -602,6 +857,7 @@ class RNGoogleFit {
       endDate,
       bucketInterval,
       bucketUnit,
+      prepareQueryOptions(options),
     );
     if (result.length > 0) {
       return prepareResponse(result, 'systolic');
@@ -616,6 +872,7 @@ class RNGoogleFit {
       endDate,
       bucketInterval,
       bucketUnit,
+      prepareQueryOptions(options),
     );
     if (result.length > 0) {
       return prepareResponse(result);
@@ -630,6 +887,7 @@ class RNGoogleFit {
       endDate,
       bucketInterval,
       bucketUnit,
+      prepareQueryOptions(options),
     );
     if (result.length > 0) {
       return prepareResponse(result);
@@ -644,6 +902,7 @@ class RNGoogleFit {
       endDate,
       bucketInterval,
       bucketUnit,
+      prepareQueryOptions(options),
     );
     if (result.length > 0) {
       return prepareResponse(result);
@@ -663,11 +922,24 @@ class RNGoogleFit {
     return result;
   }
 
+  /**
+   * Save many readings at once, e.g. an import from a glucometer. The samples are inserted in chunks of up to 900 points.
+   * @param {Array} samples [{value, date}]
+   */
+  saveBloodGlucoseBatch = async (samples) => {
+    return googleFit.saveBloodGlucoseBatch(samples.map(sample => ({ ...sample, date: Date.parse(sample.date) })))
+  }
+
+  saveBloodPressureBatch = async (samples) => {
+    return googleFit.saveBloodPressureBatch(samples.map(sample => ({ ...sample, date: Date.parse(sample.date) })))
+  }
+
   getHydrationSamples = async (options) => {
     const { startDate, endDate } = prepareInput(options);
     const result = await googleFit.getHydrationSamples(
       startDate,
-      endDate
+      endDate,
+      prepareQueryOptions(options),
     );
 
     if (result.length > 0) {
@@ -711,7 +983,8 @@ class RNGoogleFit {
 
     const result = await googleFit.getSleepSamples(
       startDate,
-      endDate
+      endDate,
+      prepareQueryOptions(options),
     );
 
     return prepareResponse(result, "addedBy", inLocalTimeZone);
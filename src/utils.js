@@ -48,6 +48,24 @@ export function prepareInput(options) {
   return { startDate, endDate, bucketInterval, bucketUnit };
 }
 
+// per-call options of a read, forwarded to the native query as its last argument
+export function prepareQueryOptions(options = {}) {
+  const queryOptions = {};
+  if (!isNil(options.format)) {
+    queryOptions.format = options.format;
+  }
+  if (!isNil(options.rollup)) {
+    queryOptions.rollup = options.rollup;
+  }
+  if (!isNil(options.requestId)) {
+    queryOptions.requestId = String(options.requestId);
+  }
+  if (!isNil(options.timeout)) {
+    queryOptions.timeout = options.timeout;
+  }
+  return queryOptions;
+}
+
 export function prepareResponse(response, byKey = 'value', inLocalTimeZone = false) {
   return response
     .map(el => {